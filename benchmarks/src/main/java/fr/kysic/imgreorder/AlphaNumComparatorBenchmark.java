@@ -0,0 +1,88 @@
+package fr.kysic.imgreorder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Comparison and sort of file names like the ones found in photo folders.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AlphaNumComparatorBenchmark {
+
+    private static final String[] PATTERNS = { "IMG_%04d.JPG", "DSC%05d.jpg", "%04d_IMG_%04d.jpg",
+            "Vacances %d (%d).jpg", "P%07d.png", "%04d_Screenshot %d-%02d-%02d.png" };
+
+    @Param({ "1000", "100000" })
+    private int size;
+
+    private final AlphaNumComparator comparator = new AlphaNumComparator();
+
+    private String[] names;
+
+    private int next;
+
+    @Setup
+    public void setUp() {
+        names = createFileNames(size, new Random(42));
+    }
+
+    /**
+     * @param count
+     *            number of names
+     * @param random
+     *            random generator (seeded for reproducible fixtures)
+     * @return file names built from the usual camera and screenshot patterns,
+     *         in random order
+     */
+    static String[] createFileNames(int count, Random random) {
+        String[] fileNames = new String[count];
+        for (int i = 0; i < count; i++) {
+            String pattern = PATTERNS[random.nextInt(PATTERNS.length)];
+            fileNames[i] = String.format(pattern, random.nextInt(10000), random.nextInt(2000), random.nextInt(12) + 1,
+                    random.nextInt(28) + 1);
+        }
+        return fileNames;
+    }
+
+    @Benchmark
+    public int compare() {
+        int i = next;
+        next = (i + 1) % (names.length - 1);
+        return comparator.compare(names[i], names[i + 1]);
+    }
+
+    @Benchmark
+    public String[] sortWithComparator() {
+        String[] sorted = names.clone();
+        Arrays.sort(sorted, comparator);
+        return sorted;
+    }
+
+    @Benchmark
+    public List<String> sortWithSortKeys() {
+        List<String> sorted = new ArrayList<String>(Arrays.asList(names));
+        AlphaNumComparator.sort(sorted, name -> name);
+        return sorted;
+    }
+
+}
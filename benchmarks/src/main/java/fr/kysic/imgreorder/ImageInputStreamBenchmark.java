@@ -0,0 +1,165 @@
+package fr.kysic.imgreorder;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading of synthetic image files (in the page cache) through the default
+ * ImageIO file stream, the memory mapped stream and its block reader fallback
+ * for remote files: header only (image size) and full decode, and the preview
+ * pipeline read (whole file read then decoded from memory).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ImageInputStreamBenchmark {
+
+    @Param({ "jpg", "png" })
+    private String format;
+
+    @Param({ "640x480", "1600x1200", "6000x4000" })
+    private String imageSize;
+
+    @Param({ "file", "mapped", "channel" })
+    private String stream;
+
+    private File imgFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        String[] dimensions = imageSize.split("x");
+        BufferedImage img = createImage(Integer.parseInt(dimensions[0]), Integer.parseInt(dimensions[1]));
+        imgFile = File.createTempFile("imgreorder-benchmark", "." + format);
+        ImageIO.write(img, format, imgFile);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.delete(imgFile.toPath());
+    }
+
+    /**
+     * @return an image with gradients and shapes, compressing like a photo
+     *         rather than like a flat image
+     */
+    private static BufferedImage createImage(int w, int h) {
+        BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = img.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, Color.blue, w, h, Color.orange));
+        g.fillRect(0, 0, w, h);
+        Random random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            g.setColor(new Color(random.nextInt(0x1000000)));
+            g.fillOval(random.nextInt(w), random.nextInt(h), random.nextInt(w / 10 + 1), random.nextInt(h / 10 + 1));
+        }
+        g.dispose();
+        return img;
+    }
+
+    private ImageInputStream openStream() throws IOException {
+        switch (stream) {
+        case "mapped":
+            return new MappedImageInputStream(imgFile.toPath(), true);
+        case "channel":
+            return new MappedImageInputStream(imgFile.toPath(), false);
+        default:
+            return new FileImageInputStream(imgFile);
+        }
+    }
+
+    private static ImageReader getReader(ImageInputStream input) throws IOException {
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            throw new IOException("No image reader available");
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(input, true, true);
+        return reader;
+    }
+
+    @Benchmark
+    public int readHeader() throws IOException {
+        try (ImageInputStream input = openStream()) {
+            ImageReader reader = getReader(input);
+            try {
+                return reader.getWidth(0) + reader.getHeight(0);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    @Benchmark
+    public BufferedImage decode() throws IOException {
+        try (ImageInputStream input = openStream()) {
+            ImageReader reader = getReader(input);
+            try {
+                return reader.read(0);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * The read of the preview pipeline: the whole file read by the I/O stage
+     * then decoded from memory, before the mapped stream.
+     */
+    @Benchmark
+    public BufferedImage readAllAndDecode() throws IOException {
+        ImageInputStream input;
+        ByteBuffer data = null;
+        if ("file".equals(stream)) {
+            input = new MemoryCacheImageInputStream(new ByteArrayInputStream(Files.readAllBytes(imgFile.toPath())));
+        } else {
+            data = MappedImageInputStream.readFully(imgFile.toPath());
+            input = new MappedImageInputStream(data);
+        }
+        try {
+            ImageReader reader = getReader(input);
+            try {
+                return reader.read(0);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            input.close();
+            if (data != null) {
+                MappedImageInputStream.release(data);
+            }
+        }
+    }
+
+}
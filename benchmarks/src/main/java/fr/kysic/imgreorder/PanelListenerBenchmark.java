@@ -0,0 +1,117 @@
+package fr.kysic.imgreorder;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseEvent;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Move and deletion of a block of images in a large list, driven like the
+ * user does it: left press and release to select, right click on the
+ * destination or delete key.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class PanelListenerBenchmark {
+
+    private static final int SELECTION_SIZE = 10;
+
+    @Param({ "1000", "10000", "50000" })
+    private int size;
+
+    private List<ImgPreviewXPath> imageList;
+
+    private List<String> deletedFiles;
+
+    private ThumbnailGrid grid;
+
+    private PanelListener listener;
+
+    @Setup
+    public void setUp() {
+        imageList = new ArrayList<ImgPreviewXPath>();
+        for (int i = 0; i < size; i++) {
+            imageList.add(new ImgPreviewXPath(String.format("/photos/IMG_%05d.jpg", i)));
+        }
+        deletedFiles = new ArrayList<String>();
+        grid = new ThumbnailGrid(imageList, 150, 120, new ThumbnailMemoryCache(1024 * 1024), img -> {
+        });
+        grid.setSize(1200, 800);
+        grid.setSize(grid.getWidth(), grid.getPreferredSize().height);
+        listener = new PanelListener(grid, imageList, deletedFiles);
+    }
+
+    /**
+     * Put back the deleted images so that the list keeps its size.
+     */
+    @Setup(Level.Invocation)
+    public void restoreDeleted() {
+        for (String deletedFile : deletedFiles) {
+            imageList.add(new ImgPreviewXPath(deletedFile));
+        }
+        deletedFiles.clear();
+    }
+
+    private MouseEvent mouseEvent(int id, int index, int button) {
+        Rectangle cell = grid.getCellBounds(index);
+        Point center = new Point(cell.x + cell.width / 2, cell.y + cell.height / 2);
+        return new MouseEvent(grid, id, 0, 0, center.x, center.y, 1, false, button);
+    }
+
+    private void select(int begin, int end) {
+        listener.mousePressed(mouseEvent(MouseEvent.MOUSE_PRESSED, begin, MouseEvent.BUTTON1));
+        listener.mouseReleased(mouseEvent(MouseEvent.MOUSE_RELEASED, end, MouseEvent.BUTTON1));
+    }
+
+    /**
+     * Move a block from the end of the list to its start.
+     */
+    @Benchmark
+    public List<ImgPreviewXPath> moveToFront() {
+        select(size - SELECTION_SIZE, size - 1);
+        listener.mouseClicked(mouseEvent(MouseEvent.MOUSE_CLICKED, 0, MouseEvent.BUTTON3));
+        return imageList;
+    }
+
+    /**
+     * Move a block from the start of the list to its end.
+     */
+    @Benchmark
+    public List<ImgPreviewXPath> moveToEnd() {
+        select(0, SELECTION_SIZE - 1);
+        listener.mouseClicked(mouseEvent(MouseEvent.MOUSE_CLICKED, size - 1, MouseEvent.BUTTON3));
+        return imageList;
+    }
+
+    /**
+     * Delete a block in the middle of the list.
+     */
+    @Benchmark
+    public List<ImgPreviewXPath> deleteMiddle() {
+        select(size / 2, size / 2 + SELECTION_SIZE - 1);
+        listener.dispatchKeyEvent(
+                new KeyEvent(grid, KeyEvent.KEY_PRESSED, 0, 0, KeyEvent.VK_DELETE, KeyEvent.CHAR_UNDEFINED));
+        return imageList;
+    }
+
+}
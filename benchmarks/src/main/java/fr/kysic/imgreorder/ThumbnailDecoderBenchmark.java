@@ -0,0 +1,109 @@
+package fr.kysic.imgreorder;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.imgscalr.Scalr;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Preview build of synthetic images, generated at setup: the decoder used by
+ * the application against the former full decode followed by a resize.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ThumbnailDecoderBenchmark {
+
+    private static final int ICON_WIDTH = 150;
+
+    private static final int ICON_HEIGHT = 120;
+
+    @Param({ "jpg", "png" })
+    private String format;
+
+    @Param({ "1600x1200", "6000x4000" })
+    private String imageSize;
+
+    private final ThumbnailDecoder decoder = new ThumbnailDecoder();
+
+    private File imgFile;
+
+    private byte[] imgData;
+
+    @Setup
+    public void setUp() throws IOException {
+        String[] dimensions = imageSize.split("x");
+        BufferedImage img = createImage(Integer.parseInt(dimensions[0]), Integer.parseInt(dimensions[1]));
+        imgFile = File.createTempFile("imgreorder-benchmark", "." + format);
+        ImageIO.write(img, format, imgFile);
+        imgData = Files.readAllBytes(imgFile.toPath());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.delete(imgFile.toPath());
+    }
+
+    /**
+     * @return an image with gradients and shapes, compressing like a photo
+     *         rather than like a flat image
+     */
+    private static BufferedImage createImage(int w, int h) {
+        BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = img.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, Color.blue, w, h, Color.orange));
+        g.fillRect(0, 0, w, h);
+        Random random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            g.setColor(new Color(random.nextInt(0x1000000)));
+            g.fillOval(random.nextInt(w), random.nextInt(h), random.nextInt(w / 10 + 1), random.nextInt(h / 10 + 1));
+        }
+        g.dispose();
+        return img;
+    }
+
+    @Benchmark
+    public BufferedImage decodeFile() throws IOException {
+        return decoder.decode(imgFile, ICON_WIDTH, ICON_HEIGHT);
+    }
+
+    @Benchmark
+    public BufferedImage decodeBytes() throws IOException {
+        return decoder.decode(imgData, ICON_WIDTH, ICON_HEIGHT);
+    }
+
+    /**
+     * The preview build before the subsampled decode.
+     */
+    @Benchmark
+    public BufferedImage readAndResize() throws IOException {
+        BufferedImage srcImg = ImageIO.read(imgFile);
+        return Scalr.resize(srcImg, Scalr.Method.SPEED, Scalr.Mode.AUTOMATIC, ICON_WIDTH, ICON_HEIGHT,
+                Scalr.OP_ANTIALIAS);
+    }
+
+}
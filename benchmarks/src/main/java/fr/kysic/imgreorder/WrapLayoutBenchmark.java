@@ -0,0 +1,81 @@
+package fr.kysic.imgreorder;
+
+import java.awt.Component;
+import java.awt.Dimension;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Size computation of a panel of previews laid out by {@link WrapLayout}
+ * (the layout of the image panel before {@link ThumbnailGrid}), when nothing
+ * changed and after a child is moved.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class WrapLayoutBenchmark {
+
+    @Param({ "1000", "10000", "50000" })
+    private int children;
+
+    private JPanel panel;
+
+    private WrapLayout layout;
+
+    @Setup
+    public void setUp() {
+        layout = new WrapLayout(WrapLayout.LEFT);
+        panel = new JPanel(layout);
+        Dimension previewSize = new Dimension(150, 120);
+        for (int i = 0; i < children; i++) {
+            JLabel label = new JLabel();
+            label.setPreferredSize(previewSize);
+            panel.add(label);
+        }
+        panel.setSize(1200, 800);
+        layout.preferredLayoutSize(panel);
+    }
+
+    @Benchmark
+    public Dimension unchanged() {
+        return layout.preferredLayoutSize(panel);
+    }
+
+    /**
+     * Move the last child to the middle.
+     */
+    @Benchmark
+    public Dimension moveToMiddle() {
+        Component last = panel.getComponent(children - 1);
+        panel.add(last, children / 2);
+        return layout.preferredLayoutSize(panel);
+    }
+
+    /**
+     * Move the last child to the front.
+     */
+    @Benchmark
+    public Dimension moveToFront() {
+        Component last = panel.getComponent(children - 1);
+        panel.add(last, 0);
+        return layout.preferredLayoutSize(panel);
+    }
+
+}
@@ -24,7 +24,12 @@ package fr.kysic.imgreorder;
  *
  */
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
+import java.util.function.Function;
 
 /**
  * This is an updated version with enhancements made by Daniel Migowski, Andre
@@ -37,41 +42,103 @@ import java.util.Comparator;
  *
  * To use this class: Use the static "sort" method from the
  * java.util.Collections class: Collections.sort(your list, new
- * AlphanumComparator());
+ * AlphanumComparator());<br>
+ * The chunks are compared in place, without allocation. To sort many strings,
+ * {@link #sort(List, Function)} tokenizes each string only once into a
+ * {@link SortKey} giving the same order.
  */
 public class AlphaNumComparator implements Comparator<String> {
 
-    private final boolean isDigit(char ch) {
+    /**
+     * Value starting the key of a numeric chunk: one more than '0', like a non
+     * numeric chunk starting with '0' would be, so that numeric and non
+     * numeric chunks are ordered by their first character.
+     */
+    private static final int NUMERIC_CHUNK = '0' + 1;
+
+    /**
+     * Value ending the key of a non numeric chunk, lower than any character,
+     * so that a chunk is ordered before the longer chunks it starts.
+     */
+    private static final int END_OF_CHUNK = 0;
+
+    /**
+     * Precomputed form of a string: comparing two keys gives the same order
+     * as comparing their strings with {@link AlphaNumComparator}.
+     */
+    public static final class SortKey implements Comparable<SortKey> {
+
+        private final String source;
+
+        private final int[] key;
+
+        private SortKey(String source, int[] key) {
+            this.source = source;
+            this.key = key;
+        }
+
+        /**
+         * @return the string the key was built from
+         */
+        public String getSource() {
+            return source;
+        }
+
+        @Override
+        public int compareTo(SortKey other) {
+            return compareKeys(key, other.key);
+        }
+
+    }
+
+    /**
+     * An element to sort with the key of its string.
+     */
+    private static final class SortEntry<T> implements Comparable<SortEntry<T>> {
+
+        private final int[] key;
+
+        private final T element;
+
+        SortEntry(int[] key, T element) {
+            this.key = key;
+            this.element = element;
+        }
+
+        @Override
+        public int compareTo(SortEntry<T> other) {
+            return compareKeys(key, other.key);
+        }
+
+    }
+
+    private static int compareKeys(int[] key1, int[] key2) {
+        int length = Math.min(key1.length, key2.length);
+        for (int i = 0; i < length; i++) {
+            if (key1[i] != key2[i]) {
+                return key1[i] < key2[i] ? -1 : 1;
+            }
+        }
+        return key1.length - key2.length;
+    }
+
+    private static boolean isDigit(char ch) {
         return ch >= 48 && ch <= 57;
     }
 
     /**
      * Length of string is passed in for improved efficiency (only need to
      * calculate it once)
+     * 
+     * @return the index following the chunk starting at marker
      **/
-    private final String getChunk(String s, int slength, int marker) {
-        StringBuilder chunk = new StringBuilder();
-        char c = s.charAt(marker);
-        chunk.append(c);
+    private static int getChunkEnd(String s, int slength, int marker) {
+        boolean digit = isDigit(s.charAt(marker));
         marker++;
-        if (isDigit(c)) {
-            while (marker < slength) {
-                c = s.charAt(marker);
-                if (!isDigit(c))
-                    break;
-                chunk.append(c);
-                marker++;
-            }
-        } else {
-            while (marker < slength) {
-                c = s.charAt(marker);
-                if (isDigit(c))
-                    break;
-                chunk.append(c);
-                marker++;
-            }
+        while (marker < slength && isDigit(s.charAt(marker)) == digit) {
+            marker++;
         }
-        return chunk.toString();
+        return marker;
     }
 
     public int compare(String s1, String s2) {
@@ -82,35 +149,107 @@ public class AlphaNumComparator implements Comparator<String> {
         int s2Length = s2.length();
 
         while (thisMarker < s1Length && thatMarker < s2Length) {
-            String thisChunk = getChunk(s1, s1Length, thisMarker);
-            thisMarker += thisChunk.length();
+            int thisChunkEnd = getChunkEnd(s1, s1Length, thisMarker);
+            int thisChunkLength = thisChunkEnd - thisMarker;
 
-            String thatChunk = getChunk(s2, s2Length, thatMarker);
-            thatMarker += thatChunk.length();
+            int thatChunkEnd = getChunkEnd(s2, s2Length, thatMarker);
+            int thatChunkLength = thatChunkEnd - thatMarker;
 
             // If both chunks contain numeric characters, sort them numerically
             int result = 0;
-            if (isDigit(thisChunk.charAt(0)) && isDigit(thatChunk.charAt(0))) {
+            if (isDigit(s1.charAt(thisMarker)) && isDigit(s2.charAt(thatMarker))) {
                 // Simple chunk comparison by length.
-                int thisChunkLength = thisChunk.length();
-                result = thisChunkLength - thatChunk.length();
+                result = thisChunkLength - thatChunkLength;
                 // If equal, the first different number counts
                 if (result == 0) {
                     for (int i = 0; i < thisChunkLength; i++) {
-                        result = thisChunk.charAt(i) - thatChunk.charAt(i);
+                        result = s1.charAt(thisMarker + i) - s2.charAt(thatMarker + i);
                         if (result != 0) {
                             return result;
                         }
                     }
                 }
             } else {
-                result = thisChunk.compareTo(thatChunk);
+                // Same as String.compareTo on the chunks
+                int length = Math.min(thisChunkLength, thatChunkLength);
+                for (int i = 0; i < length && result == 0; i++) {
+                    result = s1.charAt(thisMarker + i) - s2.charAt(thatMarker + i);
+                }
+                if (result == 0) {
+                    result = thisChunkLength - thatChunkLength;
+                }
             }
 
             if (result != 0)
                 return result;
+
+            thisMarker = thisChunkEnd;
+            thatMarker = thatChunkEnd;
         }
 
         return s1Length - s2Length;
     }
+
+    /**
+     * Tokenize a string once for repeated comparisons.<br>
+     * A non numeric chunk is keyed by its characters (plus one) followed by
+     * {@link #END_OF_CHUNK}, a numeric chunk by {@link #NUMERIC_CHUNK}, its
+     * length and its digits. The chunk following a non numeric chunk is always
+     * numeric and conversely, so keys compared element by element (the
+     * shortest first when one is the start of the other) are ordered like
+     * {@link #compare(String, String)} orders their strings.
+     *
+     * @param s
+     *            the string
+     * @return its sort key
+     */
+    public static SortKey getSortKey(String s) {
+        return new SortKey(s, computeKey(s));
+    }
+
+    private static int[] computeKey(String s) {
+        int sLength = s.length();
+        // A chunk key is at most 2 values longer than the chunk
+        int[] key = new int[3 * sLength];
+        int keyLength = 0;
+        int marker = 0;
+        while (marker < sLength) {
+            int chunkEnd = getChunkEnd(s, sLength, marker);
+            if (isDigit(s.charAt(marker))) {
+                key[keyLength++] = NUMERIC_CHUNK;
+                key[keyLength++] = chunkEnd - marker;
+                for (int i = marker; i < chunkEnd; i++) {
+                    key[keyLength++] = s.charAt(i);
+                }
+            } else {
+                for (int i = marker; i < chunkEnd; i++) {
+                    key[keyLength++] = s.charAt(i) + 1;
+                }
+                key[keyLength++] = END_OF_CHUNK;
+            }
+            marker = chunkEnd;
+        }
+        return Arrays.copyOf(key, keyLength);
+    }
+
+    /**
+     * Sort a list in the order of the strings associated to its elements,
+     * computing the sort key of each string once. The sort is stable.
+     *
+     * @param list
+     *            the list to sort
+     * @param toString
+     *            give the string by which an element is sorted
+     */
+    public static <T> void sort(List<T> list, Function<? super T, String> toString) {
+        List<SortEntry<T>> entries = new ArrayList<SortEntry<T>>(list.size());
+        for (T element : list) {
+            entries.add(new SortEntry<T>(computeKey(toString.apply(element)), element));
+        }
+        Collections.sort(entries);
+        int i = 0;
+        for (SortEntry<T> entry : entries) {
+            list.set(i++, entry.element);
+        }
+    }
 }
@@ -0,0 +1,45 @@
+package fr.kysic.imgreorder;
+
+import java.io.IOException;
+
+import javax.swing.SwingWorker;
+
+/**
+ * Run an Apply (or an undo) in background.<br>
+ * The progress of the Apply is published as the progress of the worker (in
+ * percents), its result is the result of the Apply.
+ */
+public class ApplyWorker extends SwingWorker<ReorderApplier.Result, Void> {
+
+    /**
+     * An Apply to run.
+     */
+    public interface Operation {
+
+        /**
+         * @param progress
+         *            follows the progress of the Apply
+         * @return the result of the Apply
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        ReorderApplier.Result run(ReorderApplier.Progress progress) throws IOException, InterruptedException;
+
+    }
+
+    private final Operation operation;
+
+    /**
+     * @param operation
+     *            the Apply to run
+     */
+    public ApplyWorker(Operation operation) {
+        this.operation = operation;
+    }
+
+    @Override
+    protected ReorderApplier.Result doInBackground() throws IOException, InterruptedException {
+        return operation.run((done, total) -> setProgress((int) (100L * done / total)));
+    }
+
+}
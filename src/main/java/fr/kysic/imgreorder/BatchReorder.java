@@ -0,0 +1,315 @@
+package fr.kysic.imgreorder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reorder the images of a directory, or of a tree of directories, without
+ * display.<br>
+ * The wanted order is given by a list file (one image path per line, relative
+ * to the root directory, the images not listed go after the listed ones in
+ * alphanum order) or is the alphanum order of the names. The tree is walked as
+ * by the recursive mode of the application (hidden directories and links are
+ * skipped). Each directory is applied as with the Apply button (journaled, so it can be
+ * undone in the application), several directories in parallel.
+ */
+public class BatchReorder {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BatchReorder.class);
+
+    /**
+     * Command line option of the application selecting the batch mode.
+     */
+    public static final String BATCH_OPTION = "--batch";
+
+    private static final String USAGE = "Usage : " + BATCH_OPTION
+            + " [--recursive] [--order <list file>] [--minimal] [--workers <count>] <directory>";
+
+    /**
+     * Number of files renamed in parallel, shared between the
+     * directories applied in parallel.
+     */
+    private static final int FILE_THREADS = 8;
+
+    private Path root;
+
+    private boolean recursive;
+
+    private Path orderFile;
+
+    private boolean minimal;
+
+    private int workers = Runtime.getRuntime().availableProcessors();
+
+    private final AtomicInteger directoryCount = new AtomicInteger();
+
+    private final AtomicInteger imageCount = new AtomicInteger();
+
+    private final AtomicInteger renamedCount = new AtomicInteger();
+
+    private final AtomicInteger failureCount = new AtomicInteger();
+
+    /**
+     * @param args
+     *            the command line options, after {@link #BATCH_OPTION}
+     * @throws IllegalArgumentException
+     *             if the options are not valid
+     */
+    public BatchReorder(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+            case "--recursive":
+                recursive = true;
+                break;
+            case "--order":
+                orderFile = Paths.get(getValue(args, ++i));
+                break;
+            case "--minimal":
+                minimal = true;
+                break;
+            case "--workers":
+                try {
+                    workers = Integer.parseInt(getValue(args, ++i));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid worker count : " + args[i]);
+                }
+                if (workers < 1) {
+                    throw new IllegalArgumentException("Invalid worker count : " + args[i]);
+                }
+                break;
+            default:
+                if (args[i].startsWith("--") || root != null) {
+                    throw new IllegalArgumentException("Unexpected argument : " + args[i]);
+                }
+                root = Paths.get(args[i]).toAbsolutePath().normalize();
+            }
+        }
+        if (root == null) {
+            throw new IllegalArgumentException("Missing directory");
+        }
+    }
+
+    private static String getValue(String[] args, int i) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value of " + args[i - 1]);
+        }
+        return args[i];
+    }
+
+    /**
+     * Reorder the directories and print the statistics.
+     *
+     * @return true if all the directories have been read and all the files
+     *         renamed
+     * @throws IOException
+     *             if the directories or the list file can't be read
+     * @throws InterruptedException
+     */
+    public boolean run() throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        if (!Files.isDirectory(root)) {
+            throw new NotDirectoryException(root.toString());
+        }
+        Map<Path, Integer> ranks = orderFile == null ? null : readRanks();
+        List<Path> directories;
+        if (recursive) {
+            directories = listDirectories();
+        } else {
+            directories = Collections.singletonList(root);
+        }
+        ReorderApplier applier = new ReorderApplier(new RenameEngine(Math.max(1, FILE_THREADS / workers)),
+                Math.max(1, FILE_THREADS / workers));
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>(directories.size());
+            for (Path directory : directories) {
+                futures.add(executor.submit(() -> {
+                    reorder(directory, ranks, applier);
+                    return null;
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    LOGGER.error("Unable to reorder {}", directories.get(i), e.getCause());
+                    failureCount.incrementAndGet();
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        long elapsed = Math.max(1, (System.nanoTime() - start) / 1000000);
+        System.out.println(String.format(
+                "%d directories, %d images : %d renamed, %d failures in %d ms (%.1f images/s, %.1f renames/s)",
+                directoryCount.get(), imageCount.get(), renamedCount.get(), failureCount.get(), elapsed,
+                imageCount.get() * 1000.0 / elapsed, renamedCount.get() * 1000.0 / elapsed));
+        return failureCount.get() == 0;
+    }
+
+    /**
+     * List the directories of the tree, except the hidden ones and the links
+     * (not followed). A directory which can't be read is counted as a failure
+     * and the walk goes on.
+     *
+     * @return the root directory and its subdirectories
+     */
+    private List<Path> listDirectories() throws IOException {
+        List<Path> directories = new ArrayList<Path>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attrs) {
+                if (!directory.equals(root) && directory.getFileName().toString().startsWith(".")) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                directories.add(directory);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                LOGGER.error("Unable to read {}", file, e);
+                failureCount.incrementAndGet();
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path directory, IOException e) {
+                if (e != null) {
+                    LOGGER.error("Unable to list the subdirectories of {}", directory, e);
+                    failureCount.incrementAndGet();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+        });
+        return directories;
+    }
+
+    /**
+     * @return the rank in the list file of each listed image, by absolute
+     *         path
+     */
+    private Map<Path, Integer> readRanks() throws IOException {
+        Map<Path, Integer> ranks = new HashMap<Path, Integer>();
+        for (String line : Files.readAllLines(orderFile, StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                ranks.putIfAbsent(root.resolve(line).normalize(), ranks.size());
+            }
+        }
+        return ranks;
+    }
+
+    private void reorder(Path directory, Map<Path, Integer> ranks, ReorderApplier applier)
+            throws IOException, InterruptedException {
+        ReorderApplier.Result recovered = applier.recover(directory);
+        if (recovered != null) {
+            failureCount.addAndGet(recovered.getRenameFailures() + recovered.getDeleteErrors().size());
+        }
+        List<Path> images = new ArrayList<Path>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory,
+                entry -> DirectoryScanner.isImageName(entry.getFileName().toString()))) {
+            for (Path entry : entries) {
+                if (Files.isRegularFile(entry)) {
+                    images.add(entry);
+                }
+            }
+        }
+        if (images.isEmpty()) {
+            return;
+        }
+        AlphaNumComparator.sort(images, image -> image.getFileName().toString());
+        if (ranks != null) {
+            List<Path> listed = new ArrayList<Path>();
+            List<Path> unlisted = new ArrayList<Path>();
+            for (Path image : images) {
+                (ranks.containsKey(image) ? listed : unlisted).add(image);
+            }
+            listed.sort((image1, image2) -> Integer.compare(ranks.get(image1), ranks.get(image2)));
+            images = listed;
+            images.addAll(unlisted);
+        }
+        List<RenameEngine.Rename> renames = new RenamePlanner(minimal).planRenames(directory, images);
+        int planned = 0;
+        for (RenameEngine.Rename rename : renames) {
+            if (!rename.getSource().equals(rename.getTarget())) {
+                planned++;
+            }
+        }
+        int renamed = 0;
+        int failures = 0;
+        // An unchanged directory is not applied: its journal (and the undo of
+        // its last Apply) is kept, and a read-only directory doesn't fail
+        if (planned > 0) {
+            ReorderApplier.Result result = applier.apply(directory, Collections.<Path> emptyList(), renames);
+            for (RenameEngine.Rename rename : renames) {
+                if (rename.isDone() && !rename.getSource().equals(rename.getTarget())) {
+                    renamed++;
+                }
+            }
+            failures = result.getRenameFailures() + result.getDeleteErrors().size();
+        }
+        LOGGER.info("{} : {} images, {} renamed, {} failures", directory, images.size(), renamed, failures);
+        directoryCount.incrementAndGet();
+        imageCount.addAndGet(images.size());
+        renamedCount.addAndGet(renamed);
+        failureCount.addAndGet(failures);
+    }
+
+    /**
+     * Run the batch mode, the exit status is 0 if all the directories have
+     * been read and all the files renamed, 1 if some failed and 2 if the options are not
+     * valid.
+     *
+     * @param args
+     *            the command line options, after {@link #BATCH_OPTION}
+     */
+    public static void main(String[] args) {
+        BatchReorder batchReorder;
+        try {
+            batchReorder = new BatchReorder(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+        boolean success;
+        try {
+            success = batchReorder.run();
+        } catch (IOException | InterruptedException e) {
+            LOGGER.error("Unable to reorder {}", batchReorder.root, e);
+            success = false;
+        }
+        System.exit(success ? 0 : 1);
+    }
+
+}
@@ -0,0 +1,92 @@
+package fr.kysic.imgreorder;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.imageio.ImageIO;
+
+/**
+ * A thumbnail kept encoded (JPEG, or PNG if it has transparency) in a slab of
+ * the {@link ThumbnailMemoryCache}, outside of the heap: a few KB instead of
+ * the tens of KB of its pixels.<br>
+ * It is decoded when it is painted (see
+ * {@link ThumbnailMemoryCache#getImage(CompactThumbnail)}). Its data is
+ * released when its slab is reused, the thumbnail must then be built again.
+ */
+public class CompactThumbnail {
+
+    private volatile ByteBuffer data;
+
+    private final int size;
+
+    /**
+     * Slab of the memory cache holding the data, null if it is not cached.
+     */
+    final ThumbnailMemoryCache.Slab slab;
+
+    /**
+     * @param data
+     *            the encoded thumbnail, from its position to its limit
+     * @param slab
+     *            slab holding the data, null if it is not cached
+     */
+    CompactThumbnail(ByteBuffer data, ThumbnailMemoryCache.Slab slab) {
+        this.data = data.slice();
+        this.size = this.data.remaining();
+        this.slab = slab;
+    }
+
+    /**
+     * @param thumbnail
+     *            a thumbnail
+     * @return the thumbnail encoded in the format of the thumbnail caches
+     * @throws IOException
+     */
+    public static byte[] encode(BufferedImage thumbnail) throws IOException {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        String format = thumbnail.getColorModel().hasAlpha() ? "png" : "jpg";
+        if (!ImageIO.write(thumbnail, format, encoded)) {
+            throw new IOException("No " + format + " encoder");
+        }
+        return encoded.toByteArray();
+    }
+
+    /**
+     * @return the size of the encoded thumbnail in bytes
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return true if the data has been released
+     */
+    public boolean isReleased() {
+        return data == null;
+    }
+
+    /**
+     * Release the data, before its slab is reused.
+     */
+    void release() {
+        data = null;
+    }
+
+    /**
+     * @return a copy of the encoded thumbnail, null if the data has been
+     *         released. Must be called with the memory cache lock held, so
+     *         that the slab isn't reused during the copy.
+     */
+    byte[] copyData() {
+        ByteBuffer buffer = data;
+        if (buffer == null) {
+            return null;
+        }
+        byte[] copy = new byte[size];
+        buffer.duplicate().get(copy);
+        return copy;
+    }
+
+}
@@ -0,0 +1,98 @@
+package fr.kysic.imgreorder;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executor decoding the image data read by the {@link PreviewExecutor}.<br>
+ * Decoding is CPU bound, so it runs one thread per core. The data read and
+ * not decoded yet is bounded by a byte budget: when it is exhausted, the
+ * readers wait for the decoders to catch up instead of filling the memory
+ * with file contents.
+ */
+public class DecodeExecutor extends ThreadPoolExecutor {
+
+    /**
+     * Size of a budget unit, so that budgets over 2 GB fit in a semaphore.
+     */
+    private static final int UNIT = 1024;
+
+    private final Semaphore budget;
+
+    private final int maxUnits;
+
+    /**
+     * @param nbThreads
+     *            number of threads decoding previews
+     * @param maxBufferedSize
+     *            maximal size (bytes) of the data read and waiting to be
+     *            decoded
+     */
+    public DecodeExecutor(int nbThreads, long maxBufferedSize) {
+        super(nbThreads, nbThreads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+        maxUnits = (int) Math.min(Integer.MAX_VALUE, Math.max(1, maxBufferedSize / UNIT));
+        budget = new Semaphore(maxUnits);
+    }
+
+    /**
+     * Reserve buffer space for data to read, waiting until enough space is
+     * released by the decoders. Data bigger than the whole buffer is allowed
+     * once the buffer is empty.
+     *
+     * @param size
+     *            size (bytes) of the data to read
+     * @throws InterruptedException
+     */
+    public void reserve(long size) throws InterruptedException {
+        budget.acquire(toUnits(size));
+    }
+
+    /**
+     * Release buffer space reserved with {@link #reserve(long)} when the data
+     * won't be decoded.
+     *
+     * @param size
+     *            size (bytes) given to {@link #reserve(long)}
+     */
+    public void release(long size) {
+        budget.release(toUnits(size));
+    }
+
+    /**
+     * Queue the decoding of data read in reserved buffer space, the space is
+     * released once the decoding is done.
+     *
+     * @param decode
+     *            the decoding task
+     * @param size
+     *            size (bytes) given to {@link #reserve(long)}
+     */
+    public void execute(Runnable decode, long size) {
+        try {
+            execute(() -> {
+                try {
+                    decode.run();
+                } finally {
+                    release(size);
+                }
+            });
+        } catch (RuntimeException e) {
+            release(size);
+            throw e;
+        }
+    }
+
+    /**
+     * @return the size (bytes) of the data read and waiting to be decoded
+     */
+    public long getBufferedSize() {
+        return (long) (maxUnits - budget.availablePermits()) * UNIT;
+    }
+
+    private int toUnits(long size) {
+        return (int) Math.min(maxUnits, Math.max(1, (size + UNIT - 1) / UNIT));
+    }
+
+}
@@ -0,0 +1,283 @@
+package fr.kysic.imgreorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+
+import javax.swing.SwingWorker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * List the images of a directory, or of a tree of directories, in
+ * background.<br>
+ * Entries are streamed from the directory and filtered on their name before
+ * their attributes are read (once per image, the attributes are also used to
+ * check the cached previews), so nothing is done per entry on the EDT. Found
+ * images are handed in chunks to the EDT as the scan goes, in directory order.
+ * <br>
+ * A tree is scanned by a fork/join pool, one task per directory (hidden
+ * directories and links are skipped). The images of each directory are
+ * handed to the EDT together, sorted by name.
+ */
+public class DirectoryScanner extends SwingWorker<Integer, DirectoryScanner.ScannedImage> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DirectoryScanner.class);
+
+    /**
+     * An image found by the scan.
+     */
+    public static class ScannedImage {
+
+        private final ImgPreviewXPath image;
+
+        private final boolean diskCached;
+
+        ScannedImage(ImgPreviewXPath image, boolean diskCached) {
+            this.image = image;
+            this.diskCached = diskCached;
+        }
+
+        /**
+         * @return the image, with its preview set if it was in the memory
+         *         cache
+         */
+        public ImgPreviewXPath getImage() {
+            return image;
+        }
+
+        /**
+         * @return true if the preview of the image is in the disk cache
+         */
+        public boolean isDiskCached() {
+            return diskCached;
+        }
+
+    }
+
+    private final File directory;
+
+    private final ThumbnailMemoryCache memoryCache;
+
+    private final ThumbnailDiskCache diskCache;
+
+    private final Consumer<List<ScannedImage>> chunkConsumer;
+
+    private final boolean recursive;
+
+    private final Consumer<Path> directoryPreparer;
+
+    /**
+     * @param directory
+     *            the directory to scan
+     * @param memoryCache
+     *            cache in which the previews of the found images are looked up
+     * @param diskCache
+     *            cache in which the previews not in the memory cache are
+     *            looked up
+     * @param chunkConsumer
+     *            called on the EDT with each chunk of found images, until the
+     *            scan is cancelled
+     */
+    public DirectoryScanner(File directory, ThumbnailMemoryCache memoryCache, ThumbnailDiskCache diskCache,
+            Consumer<List<ScannedImage>> chunkConsumer) {
+        this(directory, memoryCache, diskCache, chunkConsumer, false, dir -> {
+            // Nothing
+        });
+    }
+
+    /**
+     * @param directory
+     *            the directory to scan
+     * @param memoryCache
+     *            cache in which the previews of the found images are looked up
+     * @param diskCache
+     *            cache in which the previews not in the memory cache are
+     *            looked up
+     * @param chunkConsumer
+     *            called on the EDT with each chunk of found images, until the
+     *            scan is cancelled
+     * @param recursive
+     *            true to scan the subdirectories too
+     * @param directoryPreparer
+     *            called in background for each scanned directory, before its
+     *            images are listed
+     */
+    public DirectoryScanner(File directory, ThumbnailMemoryCache memoryCache, ThumbnailDiskCache diskCache,
+            Consumer<List<ScannedImage>> chunkConsumer, boolean recursive, Consumer<Path> directoryPreparer) {
+        this.directory = directory;
+        this.memoryCache = memoryCache;
+        this.diskCache = diskCache;
+        this.chunkConsumer = chunkConsumer;
+        this.recursive = recursive;
+        this.directoryPreparer = directoryPreparer;
+    }
+
+    /**
+     * @param fileName
+     *            a file name
+     * @return true if the file name has an image extension
+     */
+    public static boolean isImageName(String fileName) {
+        String lowerCaseName = fileName.toLowerCase();
+        return lowerCaseName.endsWith(".jpg") || lowerCaseName.endsWith(".png");
+    }
+
+    /**
+     * @return the number of images found
+     */
+    @Override
+    protected Integer doInBackground() throws IOException {
+        if (recursive) {
+            ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+            try {
+                return pool.invoke(new FolderScan(directory.toPath(), true));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } finally {
+                pool.shutdown();
+            }
+        }
+        directoryPreparer.accept(directory.toPath());
+        int count = 0;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory.toPath(),
+                entry -> isImageName(entry.getFileName().toString()))) {
+            for (Path entry : entries) {
+                if (isCancelled()) {
+                    break;
+                }
+                ScannedImage scannedImage = scan(entry, memoryCache, diskCache);
+                if (scannedImage != null) {
+                    publish(scannedImage);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Scan of a directory of the tree, forking the scan of its
+     * subdirectories.
+     */
+    private class FolderScan extends RecursiveTask<Integer> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path folder;
+
+        private final boolean root;
+
+        FolderScan(Path folder, boolean root) {
+            this.folder = folder;
+            this.root = root;
+        }
+
+        /**
+         * @return the number of images found in the directory and its
+         *         subdirectories
+         */
+        @Override
+        protected Integer compute() {
+            if (isCancelled()) {
+                return 0;
+            }
+            directoryPreparer.accept(folder);
+            List<FolderScan> subfolders = new ArrayList<FolderScan>();
+            List<ScannedImage> images = new ArrayList<ScannedImage>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(folder)) {
+                for (Path entry : entries) {
+                    if (isCancelled()) {
+                        break;
+                    }
+                    String name = entry.getFileName().toString();
+                    if (isImageName(name)) {
+                        ScannedImage scannedImage = scan(entry, memoryCache, diskCache);
+                        if (scannedImage != null) {
+                            images.add(scannedImage);
+                        }
+                    } else if (!name.startsWith(".") && Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                        FolderScan subfolder = new FolderScan(entry, false);
+                        subfolder.fork();
+                        subfolders.add(subfolder);
+                    }
+                }
+            } catch (IOException e) {
+                if (root) {
+                    throw new UncheckedIOException(e);
+                }
+                LOGGER.error("Unable to list the images of {}", folder, e);
+            }
+            if (!images.isEmpty() && !isCancelled()) {
+                // The images of the folder share the key of its path
+                AlphaNumComparator.SortKey folderKey = images.get(0).getImage().getFolderKey();
+                for (ScannedImage scannedImage : images) {
+                    scannedImage.getImage().setFolderKey(folderKey);
+                }
+                images.sort(Comparator.comparing(scannedImage -> scannedImage.getImage().getNameKey()));
+                publish(images.toArray(new ScannedImage[images.size()]));
+            }
+            int count = images.size();
+            for (FolderScan subfolder : subfolders) {
+                count += subfolder.join();
+            }
+            return count;
+        }
+
+    }
+
+    /**
+     * Read the attributes of an image file and look up its preview in the
+     * caches.
+     *
+     * @param imgPath
+     *            the image file
+     * @param memoryCache
+     *            cache in which the preview is looked up
+     * @param diskCache
+     *            cache in which the preview is looked up if it is not in the
+     *            memory cache
+     * @return the image, null if the file doesn't exist (any more) or is not
+     *         a regular file
+     */
+    public static ScannedImage scan(Path imgPath, ThumbnailMemoryCache memoryCache, ThumbnailDiskCache diskCache) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(imgPath, BasicFileAttributes.class);
+        } catch (IOException e) {
+            // Removed since it has been listed
+            return null;
+        }
+        if (!attributes.isRegularFile()) {
+            return null;
+        }
+        File imgFile = imgPath.toFile();
+        ImgPreviewXPath image = new ImgPreviewXPath(imgFile.getAbsolutePath());
+        long length = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        image.setFileAttributes(length, lastModified);
+        image.setThumbnail(memoryCache.get(imgFile, length, lastModified));
+        boolean diskCached = image.getThumbnail() == null && diskCache.contains(imgFile, length, lastModified);
+        return new ScannedImage(image, diskCached);
+    }
+
+    @Override
+    protected void process(List<ScannedImage> chunk) {
+        if (!isCancelled()) {
+            chunkConsumer.accept(chunk);
+        }
+    }
+
+}
@@ -0,0 +1,260 @@
+package fr.kysic.imgreorder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.swing.SwingUtilities;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watch the image files of a directory changed by other programs.<br>
+ * Events are collected until the directory is quiet for a short delay (or for
+ * a maximal delay when files keep changing, e.g. during a camera import), then
+ * the changed files are read again (attributes and cached previews) and handed
+ * to the EDT in one batch. The delivery can be paused, e.g. while the
+ * application changes the directory itself: the changed files are only read
+ * once it is resumed, so the batch reflects the directory after the changes.
+ */
+public class DirectoryWatcher implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DirectoryWatcher.class);
+
+    /**
+     * Delay without event after which the changes are delivered, in ms.
+     */
+    private static final long QUIET_DELAY = 300;
+
+    /**
+     * Maximal delay between the first change and its delivery, in ms.
+     */
+    private static final long MAX_DELAY = 2000;
+
+    /**
+     * Changes of the watched directory.
+     */
+    public static class Batch {
+
+        private final Path directory;
+
+        private final Map<Path, DirectoryScanner.ScannedImage> changes;
+
+        private final boolean complete;
+
+        Batch(Path directory, Map<Path, DirectoryScanner.ScannedImage> changes, boolean complete) {
+            this.directory = directory;
+            this.changes = changes;
+            this.complete = complete;
+        }
+
+        /**
+         * @return the watched directory
+         */
+        public Path getDirectory() {
+            return directory;
+        }
+
+        /**
+         * @return the changed image files, with the image now at this path,
+         *         null if there is no image any more
+         */
+        public Map<Path, DirectoryScanner.ScannedImage> getChanges() {
+            return changes;
+        }
+
+        /**
+         * @return true if the changes list all the images of the directory
+         *         (after too many events to know which files changed), the
+         *         images not listed are gone
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+
+    }
+
+    private final Path directory;
+
+    private final ThumbnailMemoryCache memoryCache;
+
+    private final ThumbnailDiskCache diskCache;
+
+    private final Consumer<Batch> batchConsumer;
+
+    private final WatchService watchService;
+
+    private final Set<Path> pending = new HashSet<Path>();
+
+    private boolean overflow;
+
+    private boolean paused;
+
+    private long firstPendingTime;
+
+    /**
+     * Start to watch a directory, paused.
+     *
+     * @param directory
+     *            the directory to watch
+     * @param memoryCache
+     *            cache in which the previews of the changed images are looked
+     *            up
+     * @param diskCache
+     *            cache in which the previews not in the memory cache are
+     *            looked up
+     * @param batchConsumer
+     *            called on the EDT with each batch of changes
+     * @throws IOException
+     *             if the directory can't be watched
+     */
+    public DirectoryWatcher(Path directory, ThumbnailMemoryCache memoryCache, ThumbnailDiskCache diskCache,
+            Consumer<Batch> batchConsumer) throws IOException {
+        this.directory = directory;
+        this.memoryCache = memoryCache;
+        this.diskCache = diskCache;
+        this.batchConsumer = batchConsumer;
+        this.paused = true;
+        watchService = directory.getFileSystem().newWatchService();
+        try {
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            watchService.close();
+            throw e;
+        }
+        Thread thread = new Thread(this::watch, "DirectoryWatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @param paused
+     *            true to keep the changes until the watcher is resumed
+     */
+    public synchronized void setPaused(boolean paused) {
+        this.paused = paused;
+    }
+
+    /**
+     * Deliver again the changes of a batch which couldn't be handled (they
+     * are read again before).
+     *
+     * @param batch
+     *            a batch of this watcher
+     */
+    public synchronized void recheck(Batch batch) {
+        addPending(batch.getChanges().keySet());
+        overflow |= batch.isComplete();
+    }
+
+    @Override
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            LOGGER.error("Unable to stop watching {}", directory, e);
+        }
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.poll(QUIET_DELAY, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    if (!collect(key)) {
+                        LOGGER.warn("{} can't be watched any more", directory);
+                        return;
+                    }
+                    if (System.currentTimeMillis() - getFirstPendingTime() < MAX_DELAY) {
+                        continue;
+                    }
+                }
+                deliver();
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // Closed
+        }
+    }
+
+    /**
+     * @return false if the key is not valid any more
+     */
+    private synchronized boolean collect(WatchKey key) {
+        Set<Path> paths = new HashSet<Path>();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+            } else {
+                Path name = (Path) event.context();
+                if (DirectoryScanner.isImageName(name.toString())) {
+                    paths.add(directory.resolve(name));
+                }
+            }
+        }
+        addPending(paths);
+        return key.reset();
+    }
+
+    private void addPending(Set<Path> paths) {
+        if (pending.isEmpty() && !overflow) {
+            firstPendingTime = System.currentTimeMillis();
+        }
+        pending.addAll(paths);
+    }
+
+    private synchronized long getFirstPendingTime() {
+        return pending.isEmpty() && !overflow ? System.currentTimeMillis() : firstPendingTime;
+    }
+
+    private void deliver() {
+        Set<Path> paths;
+        boolean complete;
+        synchronized (this) {
+            if (paused || (pending.isEmpty() && !overflow)) {
+                return;
+            }
+            paths = new HashSet<Path>(pending);
+            complete = overflow;
+            pending.clear();
+            overflow = false;
+        }
+        Map<Path, DirectoryScanner.ScannedImage> changes = new HashMap<Path, DirectoryScanner.ScannedImage>();
+        if (complete) {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory,
+                    entry -> DirectoryScanner.isImageName(entry.getFileName().toString()))) {
+                for (Path entry : entries) {
+                    DirectoryScanner.ScannedImage scannedImage = DirectoryScanner.scan(entry, memoryCache, diskCache);
+                    if (scannedImage != null) {
+                        changes.put(entry, scannedImage);
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.error("Unable to list the images of {}", directory, e);
+                return;
+            }
+        } else {
+            for (Path path : paths) {
+                changes.put(path, DirectoryScanner.scan(path, memoryCache, diskCache));
+            }
+        }
+        Batch batch = new Batch(directory, Collections.unmodifiableMap(changes), complete);
+        SwingUtilities.invokeLater(() -> batchConsumer.accept(batch));
+    }
+
+}
@@ -0,0 +1,222 @@
+package fr.kysic.imgreorder;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Extract the thumbnail embedded in the APP1/EXIF segment of a JPEG file.<br>
+ * Only the segment headers are read (the APP1 segment itself is at most 64
+ * KB), until the frame header giving the image size is found, so the
+ * compressed image data is never touched.
+ */
+public class ExifThumbnailReader {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExifThumbnailReader.class);
+
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_EOI = 0xD9;
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_APP1 = 0xE1;
+
+    private static final byte[] EXIF_HEADER = { 'E', 'x', 'i', 'f', 0, 0 };
+
+    private static final int TIFF_MAGIC = 42;
+    private static final int IFD_ENTRY_SIZE = 12;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT = 0x0201;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = 0x0202;
+
+    /**
+     * Maximum relative difference between the thumbnail and the image aspect
+     * ratio (some cameras embed 4:3 thumbnails with black bars for 3:2
+     * images, they must not be used).
+     */
+    private static final double MAX_ASPECT_RATIO_DIFF = 0.05;
+
+    /**
+     * Information read from the JPEG segments before the image data.
+     */
+    private static class JpegHeader {
+        private byte[] thumbnail;
+        private int width;
+        private int height;
+    }
+
+    /**
+     * Read the embedded thumbnail from the current position of the stream
+     * (which must be the beginning of a JPEG file).
+     *
+     * @param input
+     *            the JPEG stream
+     * @return the embedded thumbnail or null if there is none, it can't be
+     *         read or decoded or its aspect ratio doesn't match the image one
+     */
+    public BufferedImage read(ImageInputStream input) {
+        byte[] thumbnail = readData(input);
+        if (thumbnail == null) {
+            return null;
+        }
+        try {
+            return ImageIO.read(new MappedImageInputStream(ByteBuffer.wrap(thumbnail)));
+        } catch (IOException e) {
+            // Corrupted thumbnail, the image is decoded instead
+            LOGGER.debug("Unable to decode the embedded thumbnail", e);
+            return null;
+        }
+    }
+
+    /**
+     * Read the embedded thumbnail from the current position of the stream
+     * (which must be the beginning of a JPEG file), without decoding it.
+     *
+     * @param input
+     *            the JPEG stream
+     * @return the JPEG data of the embedded thumbnail or null if there is
+     *         none, the headers can't be read (e.g. a truncated file or a
+     *         corrupted segment length) or its aspect ratio doesn't match the
+     *         image one
+     */
+    public byte[] readData(ImageInputStream input) {
+        try {
+            JpegHeader header = readHeader(input, true);
+            if (header == null || header.thumbnail == null) {
+                return null;
+            }
+            JpegHeader thumbnailHeader = readHeader(new MappedImageInputStream(ByteBuffer.wrap(header.thumbnail)),
+                    false);
+            if (thumbnailHeader == null || !isSameAspectRatio(thumbnailHeader.width, thumbnailHeader.height,
+                    header.width, header.height)) {
+                return null;
+            }
+            return header.thumbnail;
+        } catch (IOException e) {
+            // The image is decoded instead, which reports the errors of the
+            // file itself
+            LOGGER.debug("Unable to read the embedded thumbnail", e);
+            return null;
+        }
+    }
+
+    /**
+     * @param input
+     *            the JPEG stream
+     * @param withThumbnail
+     *            should the EXIF thumbnail be extracted
+     * @return the header or null if the image size can't be found
+     * @throws IOException
+     */
+    private JpegHeader readHeader(ImageInputStream input, boolean withThumbnail) throws IOException {
+        if (input.read() != 0xFF || input.read() != MARKER_SOI) {
+            return null;
+        }
+        JpegHeader header = new JpegHeader();
+        int marker;
+        while ((marker = nextMarker(input)) != -1 && marker != MARKER_SOS && marker != MARKER_EOI) {
+            int length = input.readUnsignedShort() - 2;
+            if (length < 0) {
+                return null;
+            }
+            long segmentEnd = input.getStreamPosition() + length;
+            if (withThumbnail && marker == MARKER_APP1 && header.thumbnail == null) {
+                byte[] segment = new byte[length];
+                input.readFully(segment);
+                header.thumbnail = extractThumbnail(segment);
+            } else if (isStartOfFrame(marker)) {
+                input.skipBytes(1); // sample precision
+                header.height = input.readUnsignedShort();
+                header.width = input.readUnsignedShort();
+                break;
+            }
+            input.seek(segmentEnd);
+        }
+        if (header.width <= 0 || header.height <= 0) {
+            return null;
+        }
+        return header;
+    }
+
+    private int nextMarker(ImageInputStream input) throws IOException {
+        int b = input.read();
+        if (b != 0xFF) {
+            return -1;
+        }
+        // Any number of 0xFF fill bytes may precede a marker
+        while (b == 0xFF) {
+            b = input.read();
+        }
+        return b;
+    }
+
+    private boolean isStartOfFrame(int marker) {
+        // SOF0 to SOF15 except DHT (C4), JPG (C8) and DAC (CC)
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+
+    private boolean isSameAspectRatio(int w1, int h1, int w2, int h2) {
+        double ratio1 = w1 / (double) h1;
+        double ratio2 = w2 / (double) h2;
+        return Math.abs(ratio1 - ratio2) / ratio2 <= MAX_ASPECT_RATIO_DIFF;
+    }
+
+    /**
+     * @param segment
+     *            APP1 segment content
+     * @return the JPEG bytes of the thumbnail described by IFD1 or null
+     */
+    private byte[] extractThumbnail(byte[] segment) {
+        if (segment.length < EXIF_HEADER.length) {
+            return null;
+        }
+        for (int i = 0; i < EXIF_HEADER.length; i++) {
+            if (segment[i] != EXIF_HEADER[i]) {
+                return null;
+            }
+        }
+        try {
+            ByteBuffer tiff = ByteBuffer.wrap(segment, EXIF_HEADER.length, segment.length - EXIF_HEADER.length)
+                    .slice();
+            tiff.order(tiff.get(0) == 'I' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+            if (tiff.getShort(2) != TIFF_MAGIC) {
+                return null;
+            }
+            int ifd0 = tiff.getInt(4);
+            int ifd0Entries = tiff.getShort(ifd0) & 0xFFFF;
+            int ifd1 = tiff.getInt(ifd0 + 2 + ifd0Entries * IFD_ENTRY_SIZE);
+            if (ifd1 <= 0) {
+                return null;
+            }
+            int ifd1Entries = tiff.getShort(ifd1) & 0xFFFF;
+            int offset = 0;
+            int length = 0;
+            for (int i = 0; i < ifd1Entries; i++) {
+                int entry = ifd1 + 2 + i * IFD_ENTRY_SIZE;
+                int tag = tiff.getShort(entry) & 0xFFFF;
+                if (tag == TAG_JPEG_INTERCHANGE_FORMAT) {
+                    offset = tiff.getInt(entry + 8);
+                } else if (tag == TAG_JPEG_INTERCHANGE_FORMAT_LENGTH) {
+                    length = tiff.getInt(entry + 8);
+                }
+            }
+            // Written so that a corrupted length can't overflow
+            if (offset <= 0 || length <= 0 || offset > tiff.limit() || length > tiff.limit() - offset) {
+                return null;
+            }
+            byte[] thumbnail = new byte[length];
+            tiff.position(offset);
+            tiff.get(thumbnail);
+            return thumbnail;
+        } catch (IndexOutOfBoundsException | BufferUnderflowException e) {
+            // Corrupted EXIF, ignore the thumbnail
+            return null;
+        }
+    }
+
+}
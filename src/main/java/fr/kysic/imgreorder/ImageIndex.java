@@ -0,0 +1,76 @@
+package fr.kysic.imgreorder;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Position of the images in the image list.<br>
+ * Positions are only known to be valid before the first index changed since
+ * they were computed: changes just mark that index and the positions after it
+ * are recomputed lazily, up to the looked up image, so a lookup is O(1) until
+ * the next change before it. All the methods must be called with the image
+ * list lock held.
+ */
+public class ImageIndex {
+
+    private final List<ImgPreviewXPath> imageList;
+
+    private final Map<ImgPreviewXPath, Integer> positions = new IdentityHashMap<ImgPreviewXPath, Integer>();
+
+    /**
+     * Number of images at the start of the list whose position is valid.
+     */
+    private int validCount;
+
+    /**
+     * @param imageList
+     *            the indexed list
+     */
+    public ImageIndex(List<ImgPreviewXPath> imageList) {
+        this.imageList = imageList;
+    }
+
+    /**
+     * @param img
+     *            an image
+     * @return the index of the image in the list, -1 if it is not in it
+     */
+    public int indexOf(ImgPreviewXPath img) {
+        if (img == null) {
+            return -1;
+        }
+        Integer position = positions.get(img);
+        if (position != null && position < validCount && imageList.get(position) == img) {
+            return position;
+        }
+        // Not in the valid part of the list, so the image is after it (if it
+        // is still in the list)
+        int size = imageList.size();
+        while (validCount < size) {
+            ImgPreviewXPath indexed = imageList.get(validCount);
+            positions.put(indexed, validCount++);
+            if (indexed == img) {
+                return validCount - 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Must be called when images are added, removed or moved in the list.
+     *
+     * @param firstChanged
+     *            the first index whose image changed
+     */
+    public void invalidateFrom(int firstChanged) {
+        if (firstChanged <= 0) {
+            // Also forget the images removed from the list
+            positions.clear();
+            validCount = 0;
+        } else {
+            validCount = Math.min(validCount, firstChanged);
+        }
+    }
+
+}
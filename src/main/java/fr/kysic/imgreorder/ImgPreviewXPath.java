@@ -1,29 +1,36 @@
 package fr.kysic.imgreorder;
 
-import javax.swing.JLabel;
+import java.io.File;
 
 /**
- * Associate a JLabel containing the image preview and the absolute path of the
- * image file.
+ * Associate the absolute path of an image file and its preview (null until
+ * it is built).<br>
+ * The sort keys of its folder and name are kept with it, so that sorting the
+ * images doesn't split and tokenize their paths at each comparison.
  */
 public class ImgPreviewXPath {
 
     private String absolutePath;
 
-    private JLabel preview;
+    private volatile CompactThumbnail thumbnail;
+
+    private long length;
+
+    private long lastModified;
+
+    private AlphaNumComparator.SortKey folderKey;
+
+    private AlphaNumComparator.SortKey nameKey;
 
     /**
      * Constructor
      * 
      * @param absolutePath
      *            img absolute path
-     * @param preview
-     *            jLabel preview
      */
-    public ImgPreviewXPath(String absolutePath, JLabel preview) {
+    public ImgPreviewXPath(String absolutePath) {
         super();
         this.absolutePath = absolutePath;
-        this.preview = preview;
     }
 
     /**
@@ -38,22 +45,104 @@ public class ImgPreviewXPath {
      *            the image file absolute path
      */
     public void setAbsolutePath(String absolutePath) {
+        if (folderKey != null && !getFolder(absolutePath).equals(folderKey.getSource())) {
+            folderKey = null;
+        }
+        nameKey = null;
         this.absolutePath = absolutePath;
     }
 
     /**
-     * @return the jLabel preview
+     * @return the image file name
+     */
+    public String getName() {
+        return absolutePath.substring(absolutePath.lastIndexOf(File.separatorChar) + 1);
+    }
+
+    /**
+     * @return the absolute path of the directory of the image
+     */
+    public String getFolder() {
+        return getFolder(absolutePath);
+    }
+
+    private static String getFolder(String absolutePath) {
+        return absolutePath.substring(0, Math.max(0, absolutePath.lastIndexOf(File.separatorChar)));
+    }
+
+    /**
+     * @return the sort key of the folder of the image
+     */
+    public AlphaNumComparator.SortKey getFolderKey() {
+        AlphaNumComparator.SortKey key = folderKey;
+        if (key == null) {
+            key = AlphaNumComparator.getSortKey(getFolder());
+            folderKey = key;
+        }
+        return key;
+    }
+
+    /**
+     * Share the sort key of a folder between its images.
+     *
+     * @param folderKey
+     *            the sort key of the folder of the image
+     */
+    public void setFolderKey(AlphaNumComparator.SortKey folderKey) {
+        this.folderKey = folderKey;
+    }
+
+    /**
+     * @return the sort key of the name of the image
+     */
+    public AlphaNumComparator.SortKey getNameKey() {
+        AlphaNumComparator.SortKey key = nameKey;
+        if (key == null) {
+            key = AlphaNumComparator.getSortKey(getName());
+            nameKey = key;
+        }
+        return key;
+    }
+
+    /**
+     * @return the size of the image file when it was listed
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return the last modification time of the image file when it was
+     *         listed, in ms
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @param length
+     *            the size of the image file
+     * @param lastModified
+     *            the last modification time of the image file, in ms
+     */
+    public void setFileAttributes(long length, long lastModified) {
+        this.length = length;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * @return the preview or null if it is not built yet
      */
-    public JLabel getPreview() {
-        return preview;
+    public CompactThumbnail getThumbnail() {
+        return thumbnail;
     }
 
     /**
-     * @param preview
-     *            the jLabel preview
+     * @param thumbnail
+     *            the preview
      */
-    public void setPreview(JLabel preview) {
-        this.preview = preview;
+    public void setThumbnail(CompactThumbnail thumbnail) {
+        this.thumbnail = thumbnail;
     }
 
 }
@@ -1,39 +1,46 @@
 package fr.kysic.imgreorder;
 
 import java.awt.BorderLayout;
-import java.awt.Color;
 import java.awt.Dimension;
-import java.awt.Image;
 import java.awt.KeyboardFocusManager;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.awt.event.MouseAdapter;
-import java.awt.event.MouseEvent;
 import java.awt.image.BufferedImage;
 import java.awt.image.ImagingOpException;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.ResourceBundle;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
 
-import javax.imageio.ImageIO;
-import javax.swing.BorderFactory;
-import javax.swing.ImageIcon;
+import javax.imageio.stream.ImageInputStream;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
-import javax.swing.JLabel;
+import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
-import javax.swing.SwingConstants;
-import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
-import org.imgscalr.Scalr;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -56,12 +63,59 @@ public class ImgReorderApp {
 
     private static final int WINDOWS_WIDTH = 800;
 
-    private static final int POOL_MAX_NB_CORES = 4;
+    /**
+     * Number of files renamed in parallel.
+     */
+    private static final int RENAME_THREADS = 8;
+
+    /**
+     * Number of files deleted in parallel.
+     */
+    private static final int DELETE_THREADS = 8;
+
+    /**
+     * Number of folders applied in parallel (sharing the rename and delete
+     * threads).
+     */
+    private static final int FOLDER_THREADS = 4;
+
+    private static final String IO_THREADS_PROPERTY = "imgreorder.ioThreads";
+
+    /**
+     * Default number of threads reading image files, reads are mostly waiting
+     * for the disk or the network.
+     */
+    private static final int DEFAULT_IO_THREADS = 16;
+
+    /**
+     * Maximal size of the image data read and waiting to be decoded.
+     */
+    private static final long DECODE_BUFFER_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * Period (ms) of the preview pipeline statistics log.
+     */
+    private static final int STATS_PERIOD = 5000;
 
     private static final int ICON_HEIGHT = 120;
 
     private static final int ICON_WIDTH = 150;
 
+    private static final String THUMBNAIL_CACHE_DIR = ".imgreorder";
+
+    private static final long THUMBNAIL_CACHE_MAX_SIZE = 512L * 1024 * 1024;
+
+    private static final String MEMORY_CACHE_SIZE_PROPERTY = "imgreorder.memoryCacheSize";
+
+    private static final long DEFAULT_MEMORY_CACHE_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * Order of the images when a directory is opened (grouped by folder),
+     * compared with their sort keys.
+     */
+    private static final Comparator<ImgPreviewXPath> IMAGE_ORDER = Comparator
+            .comparing(ImgPreviewXPath::getFolderKey).thenComparing(ImgPreviewXPath::getNameKey);
+
     private static final Logger LOGGER = LoggerFactory.getLogger(ImgReorderApp.class);
 
     private static final String RESOURCES = "Resources";
@@ -69,11 +123,34 @@ public class ImgReorderApp {
     private static final String DIRECTORY_CHOOSER_TITLE = "button.directoryChooser";
     private static final String DIRECTORY_CHOOSER_BUTTON_LAB = "button.directoryChooser";
     private static final String APPLY_BUTTON_LAB = "button.apply";
+    private static final String UNDO_BUTTON_LAB = "button.undo";
+    private static final String APPLY_FAILURES_TITLE = "message.applyFailures.title";
+    private static final String APPLY_FAILURES_MESSAGE = "message.applyFailures";
+    private static final String SYNC_CONFLICTS_TITLE = "message.syncConflicts.title";
+    private static final String SYNC_MODIFIED_CONFLICT = "message.syncConflicts.modified";
+    private static final String SYNC_DELETED_CONFLICT = "message.syncConflicts.deleted";
+
+    /**
+     * Maximal number of failed files listed after an Apply.
+     */
+    private static final int MAX_REPORTED_FAILURES = 20;
+    private static final String MINIMAL_RENAME_CHECKBOX_LAB = "checkbox.minimalRename";
+    private static final String RECURSIVE_CHECKBOX_LAB = "checkbox.recursive";
 
     private JFileChooser directoryChooser;
-    private JPanel imgPanel;
+    private JCheckBox minimalRenameCheckBox;
+    private JCheckBox recursiveCheckBox;
+    private JButton fileChooserButton;
+    private JButton applyButton;
+    private JButton undoButton;
+    private JProgressBar applyProgressBar;
+    private boolean applyRunning;
+    private ThumbnailGrid imgPanel;
+
+    private JScrollPane scrollPanel;
     
     private File currentDirectory;
+    private boolean recursive;
     private List<ImgPreviewXPath> imageList;
 
     private ResourceBundle resources;
@@ -82,7 +159,36 @@ public class ImgReorderApp {
 
     private PanelListener panelListener;
 
-    private ExecutorService buildPreviewExecutor;
+    private DirectoryScanner directoryScanner;
+
+    private DirectoryWatcher directoryWatcher;
+
+    private PreviewExecutor buildPreviewExecutor;
+
+    private DecodeExecutor decodeExecutor;
+
+    private long lastReadCount;
+
+    private long lastDecodeCount;
+
+    private PreviewPublisher previewPublisher;
+
+    private PipelineMetrics metrics;
+
+    private ThumbnailDecoder thumbnailDecoder;
+
+    private ReorderApplier reorderApplier;
+
+    private ReorderApplier folderApplier;
+
+    /**
+     * Directories of the displayed images whose last Apply can be undone.
+     */
+    private Set<Path> undoableDirectories = ConcurrentHashMap.newKeySet();
+
+    private ThumbnailDiskCache thumbnailDiskCache;
+
+    private ThumbnailMemoryCache thumbnailMemoryCache;
 
     private List<String> deletedFiles;
 
@@ -96,20 +202,11 @@ public class ImgReorderApp {
         }
     }
 
-    private boolean isImageFile(File file) {
-        boolean isImageFile = false;
-        if (file.isFile()) {
-            String fileName = file.getName().toLowerCase();
-            isImageFile = fileName.endsWith(".jpg") || fileName.endsWith(".png");
-        }
-        return isImageFile;
-    }
-    
     /**
-     * Resizes an image using a Graphics2D object backed by a BufferedImage.
+     * Resizes an image, decoding it directly at a reduced resolution.
      * 
-     * @param imgPath
-     *            the path to the image to resize
+     * @param imgData
+     *            the content of the image file to resize
      * @param w
      *            desired width
      * @param h
@@ -119,132 +216,628 @@ public class ImgReorderApp {
      * @throws ImagingOpException
      * @throws IllegalArgumentException
      */
-    private Image getScaledImage(String imgPath, int w, int h) throws IllegalArgumentException, ImagingOpException,
-            IOException {
-        BufferedImage srcImg = ImageIO.read(new File(imgPath));
-        // BufferedImage resizedImg = new BufferedImage(w, h,
-        // BufferedImage.TYPE_INT_RGB);
-        // Graphics2D g2 = resizedImg.createGraphics();
-        // g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
-        // RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-        // double ratio = Math.min(w / (double) srcImg.getWidth(null), h /
-        // (double) srcImg.getHeight(null));
-        // int newW = (int) (srcImg.getWidth(null) * ratio);
-        // int newH = (int) (srcImg.getHeight(null) * ratio);
-        // g2.drawImage(srcImg, 0, 0, newW, newH, null);
-        // g2.dispose();
-        // return resizedImg;
-        return Scalr.resize(srcImg, Scalr.Method.SPEED, Scalr.Mode.AUTOMATIC, w, h, Scalr.OP_ANTIALIAS);
+    private BufferedImage getScaledImage(ByteBuffer imgData, int w, int h) throws IllegalArgumentException,
+            ImagingOpException, IOException {
+        return thumbnailDecoder.decode(imgData, w, h);
     }
 
-    private void buildPreview(ImgPreviewXPath rimg) {
+    /**
+     * First stage of the preview build, run by the I/O threads: load the
+     * preview from the disk cache or read the data to decode and hand it to
+     * the decode threads.
+     */
+    private void buildPreview(ImgPreviewXPath rimg, long generation) {
+        File imgFile = new File(rimg.getAbsolutePath());
+        long start = metrics.startTiming();
         try {
-            ImageIcon thumbnailIcon = new ImageIcon(getScaledImage(rimg.getAbsolutePath(), ICON_WIDTH, ICON_HEIGHT));
-            rimg.getPreview().setText("");
-            rimg.getPreview().setIcon(thumbnailIcon);
-            rimg.getPreview().repaint();
+            byte[] encoded = thumbnailDiskCache.getEncoded(imgFile);
+            metrics.diskCacheLookedUp(encoded != null);
+            if (encoded != null) {
+                metrics.readDone(start);
+                CompactThumbnail thumbnail = thumbnailMemoryCache.put(imgFile, encoded);
+                previewPublisher.publish(rimg, thumbnail, generation);
+                return;
+            }
+            byte[] embedded = thumbnailDecoder.readEmbeddedThumbnail(imgFile);
+            ByteBuffer imgData = embedded != null ? ByteBuffer.wrap(embedded) : null;
+            long size = imgData != null ? imgData.remaining() : imgFile.length();
+            decodeExecutor.reserve(size);
+            try {
+                if (PreviewExecutor.isCurrentTaskCancelled()) {
+                    throw new InterruptedIOException("Read cancelled");
+                }
+                if (imgData == null) {
+                    imgData = MappedImageInputStream.readFully(imgFile.toPath());
+                }
+                metrics.readDone(start);
+            } catch (IOException | RuntimeException e) {
+                decodeExecutor.release(size);
+                throw e;
+            }
+            ByteBuffer data = imgData;
+            Runnable decode = PreviewExecutor
+                    .continueCurrentTask(() -> decodePreview(rimg, imgFile, data, generation));
+            try {
+                decodeExecutor.execute(() -> {
+                    try {
+                        decode.run();
+                    } finally {
+                        // Even if cancelled, a mapped file can't be renamed
+                        MappedImageInputStream.release(data);
+                    }
+                }, size);
+            } catch (RuntimeException e) {
+                MappedImageInputStream.release(data);
+                throw e;
+            }
+        } catch (InterruptedIOException | InterruptedException e) {
+            LOGGER.debug("Preview of {} cancelled", rimg.getAbsolutePath());
         } catch (IOException e) {
             LOGGER.error("Unable to build preview of {}", rimg.getAbsolutePath(), e);
+        } catch (InternalError e) {
+            // Mapped file truncated by another program
+            LOGGER.error("Unable to build preview of {}, changed while it was read", rimg.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Second stage of the preview build, run by the decode threads.
+     */
+    private void decodePreview(ImgPreviewXPath rimg, File imgFile, ByteBuffer imgData, long generation) {
+        try {
+            BufferedImage image = getScaledImage(imgData, ICON_WIDTH, ICON_HEIGHT);
+            byte[] encoded = CompactThumbnail.encode(image);
+            thumbnailDiskCache.put(imgFile, encoded);
+            CompactThumbnail thumbnail = thumbnailMemoryCache.put(imgFile, encoded);
+            thumbnailMemoryCache.putImage(thumbnail, image);
+            previewPublisher.publish(rimg, thumbnail, generation);
+        } catch (InterruptedIOException e) {
+            LOGGER.debug("Preview of {} cancelled", rimg.getAbsolutePath());
+        } catch (IOException e) {
+            LOGGER.error("Unable to build preview of {}", rimg.getAbsolutePath(), e);
+        } catch (InternalError e) {
+            // Mapped file truncated by another program
+            LOGGER.error("Unable to build preview of {}, changed while it was read", rimg.getAbsolutePath(), e);
         }
     }
     
     private void buildPreviewInBg(ImgPreviewXPath rimg) {
-        buildPreviewExecutor.execute( () -> { buildPreview(rimg); } );
+        long generation = buildPreviewExecutor.getGeneration();
+        buildPreviewExecutor.execute(rimg, () -> buildPreview(rimg, generation));
     }
     
     private void resetPreviewExecutor() {
         if (buildPreviewExecutor != null) {
             buildPreviewExecutor.shutdownNow();
         }
-        int nbCores = Runtime.getRuntime().availableProcessors();
-        buildPreviewExecutor = Executors.newFixedThreadPool(Math.min(nbCores, POOL_MAX_NB_CORES));
+        buildPreviewExecutor = new PreviewExecutor(Integer.getInteger(IO_THREADS_PROPERTY, DEFAULT_IO_THREADS),
+                imgPanel, scrollPanel.getViewport());
+    }
+
+    /**
+     * Log the queue depth and the throughput of the preview build stages,
+     * when previews are being built.
+     */
+    private void logPipelineStats() {
+        long readCount = buildPreviewExecutor.getCompletedTaskCount();
+        long decodeCount = decodeExecutor.getCompletedTaskCount();
+        int readQueue = buildPreviewExecutor.getQueue().size();
+        int decodeQueue = decodeExecutor.getQueue().size();
+        if (readCount != lastReadCount || decodeCount != lastDecodeCount || readQueue > 0 || decodeQueue > 0) {
+            double seconds = STATS_PERIOD / 1000.0;
+            LOGGER.info("Preview pipeline : read {} queued, {}/s ({} threads) ; decode {} queued, {}/s ({} threads),"
+                    + " {} bytes buffered", readQueue, String.format("%.1f", (readCount - lastReadCount) / seconds),
+                    buildPreviewExecutor.getPoolSize(), decodeQueue,
+                    String.format("%.1f", (decodeCount - lastDecodeCount) / seconds), decodeExecutor.getPoolSize(),
+                    decodeExecutor.getBufferedSize());
+        }
+        lastReadCount = readCount;
+        lastDecodeCount = decodeCount;
+        metrics.logSummary();
     }
 
     private void displayImgsFromCurrentDirectory() {
+        if (directoryScanner != null) {
+            directoryScanner.cancel(false);
+        }
+        if (directoryWatcher != null) {
+            directoryWatcher.close();
+            directoryWatcher = null;
+        }
+        buildPreviewExecutor.newGeneration();
+        metrics.loadStarted();
+        recursive = recursiveCheckBox.isSelected();
+        imgPanel.setRootDirectory(recursive ? currentDirectory.getAbsolutePath() : null);
+        Set<Path> undoable = ConcurrentHashMap.newKeySet();
+        undoableDirectories = undoable;
+        updateUndoButton();
         synchronized (imageList) {
-            imgPanel.removeAll();
             imageList.clear();
-            File[] dirContent = currentDirectory.listFiles();
-            Arrays.sort(dirContent, Comparator.comparing((File f) -> f.getName(), new AlphaNumComparator()));
-            for (File imgFile : dirContent) {
-                if (isImageFile(imgFile)) {
-                    JLabel label = new JLabel(imgFile.getName());
-                    label.setToolTipText(imgFile.getName());
-                    label.setHorizontalAlignment(SwingConstants.CENTER);
-                    label.setBorder(BorderFactory.createLineBorder(Color.black));
-                    label.setPreferredSize(new Dimension(ICON_WIDTH, ICON_HEIGHT));
-                    // redirect label listener to jpanel
-                    // allow to capture press/release on different JLabel
-                    // (otherwise adding the same listener on each label would
-                    // have been simpler)
-                    label.addMouseListener(new MouseAdapter() {
-                        public void mouseClicked(MouseEvent e) {
-                            imgPanel.dispatchEvent(SwingUtilities.convertMouseEvent(e.getComponent(), e, imgPanel));
-                        }
+        }
+        imgPanel.modelChanged();
+        long start = System.currentTimeMillis();
+        DirectoryScanner scanner = new DirectoryScanner(currentDirectory, thumbnailMemoryCache, thumbnailDiskCache,
+                this::insertImgs, recursive, directory -> prepareDirectory(directory, undoable));
+        scanner.addPropertyChangeListener(e -> {
+            if (scanner.isDone()) {
+                scanDone(scanner, start);
+            }
+        });
+        directoryScanner = scanner;
+        if (recursive) {
+            // Only single folders are watched
+            scanner.execute();
+            return;
+        }
+        // Watched from the start of the scan, the changes are handled once
+        // the scan is done
+        try {
+            directoryWatcher = new DirectoryWatcher(currentDirectory.toPath(), thumbnailMemoryCache,
+                    thumbnailDiskCache, this::syncImgs);
+        } catch (IOException e) {
+            LOGGER.error("Unable to watch {}, it must be reopened to see changes from other programs",
+                    currentDirectory, e);
+        }
+        scanner.execute();
+    }
 
-                        public void mousePressed(MouseEvent e) {
-                            imgPanel.dispatchEvent(SwingUtilities.convertMouseEvent(e.getComponent(), e, imgPanel));
-                        }
+    /**
+     * The changes from other programs are only handled when neither a scan
+     * nor an Apply is running, so they are compared to an up to date image
+     * list.
+     */
+    private boolean isSyncPaused() {
+        return applyRunning || (directoryScanner != null && !directoryScanner.isDone());
+    }
 
-                        public void mouseReleased(MouseEvent e) {
-                            imgPanel.dispatchEvent(SwingUtilities.convertMouseEvent(e.getComponent(), e, imgPanel));
-                        }
-                    });
-                    imgPanel.add(label);
-                    ImgPreviewXPath rimg = new ImgPreviewXPath(imgFile.getAbsolutePath(), label);
-                    imageList.add(rimg);
-                    buildPreviewInBg(rimg);
+    private void updateWatcher() {
+        if (directoryWatcher != null) {
+            directoryWatcher.setPaused(isSyncPaused());
+        }
+    }
+
+    /**
+     * Apply to the image list the changes of the directory done by other
+     * programs, keeping the order of the images. Called on the EDT.
+     */
+    private void syncImgs(DirectoryWatcher.Batch batch) {
+        if (directoryWatcher == null || !batch.getDirectory().equals(currentDirectory.toPath())) {
+            // Batch of a previous directory
+            return;
+        }
+        if (isSyncPaused()) {
+            directoryWatcher.recheck(batch);
+            return;
+        }
+        Map<String, DirectoryScanner.ScannedImage> present = new HashMap<String, DirectoryScanner.ScannedImage>();
+        Set<String> changed = new HashSet<String>();
+        for (Map.Entry<Path, DirectoryScanner.ScannedImage> change : batch.getChanges().entrySet()) {
+            changed.add(change.getKey().toString());
+            if (change.getValue() != null) {
+                present.put(change.getKey().toString(), change.getValue());
+            }
+        }
+        List<String> conflicts = new ArrayList<String>();
+        List<ImgPreviewXPath> modified = new ArrayList<ImgPreviewXPath>();
+        int renamedCount = 0;
+        int removedCount = 0;
+        int firstRemoved = -1;
+        synchronized (imageList) {
+            for (Iterator<String> iterator = deletedFiles.iterator(); iterator.hasNext();) {
+                String deletedFile = iterator.next();
+                String name = Paths.get(deletedFile).getFileName().toString();
+                if (present.remove(deletedFile) != null) {
+                    conflicts.add(String.format(resources.getString(SYNC_MODIFIED_CONFLICT), name));
+                } else if (batch.isComplete() || changed.contains(deletedFile)) {
+                    iterator.remove();
+                    conflicts.add(String.format(resources.getString(SYNC_DELETED_CONFLICT), name));
                 }
             }
-            imgPanel.revalidate();
-            imgPanel.repaint();
+            List<ImgPreviewXPath> gone = new ArrayList<ImgPreviewXPath>();
+            for (ImgPreviewXPath img : imageList) {
+                DirectoryScanner.ScannedImage scannedImage = present.remove(img.getAbsolutePath());
+                if (scannedImage != null) {
+                    ImgPreviewXPath current = scannedImage.getImage();
+                    if (current.getLength() != img.getLength()
+                            || current.getLastModified() != img.getLastModified()) {
+                        img.setFileAttributes(current.getLength(), current.getLastModified());
+                        modified.add(img);
+                    }
+                } else if (batch.isComplete() || changed.contains(img.getAbsolutePath())) {
+                    gone.add(img);
+                }
+            }
+            // A file gone and a new file with the same size and modification
+            // time is a rename: the image keeps its place
+            Map<String, String> newPaths = new HashMap<String, String>();
+            for (DirectoryScanner.ScannedImage scannedImage : present.values()) {
+                ImgPreviewXPath img = scannedImage.getImage();
+                String key = img.getLength() + ":" + img.getLastModified();
+                // Ambiguous if several new files have the same attributes
+                newPaths.put(key, newPaths.containsKey(key) ? null : img.getAbsolutePath());
+            }
+            Set<ImgPreviewXPath> removed = Collections.newSetFromMap(new IdentityHashMap<ImgPreviewXPath, Boolean>());
+            for (ImgPreviewXPath img : gone) {
+                String newPath = newPaths.remove(img.getLength() + ":" + img.getLastModified());
+                if (newPath != null) {
+                    present.remove(newPath);
+                    thumbnailDiskCache.rename(img.getAbsolutePath(), newPath);
+                    thumbnailMemoryCache.rename(img.getAbsolutePath(), newPath);
+                    img.setAbsolutePath(newPath);
+                    renamedCount++;
+                } else {
+                    removed.add(img);
+                }
+            }
+            if (!removed.isEmpty()) {
+                for (int i = 0; i < imageList.size() && firstRemoved == -1; i++) {
+                    if (removed.contains(imageList.get(i))) {
+                        firstRemoved = i;
+                    }
+                }
+                imageList.removeIf(removed::contains);
+                removedCount = removed.size();
+            }
+        }
+        if (firstRemoved != -1) {
+            imgPanel.modelChanged(firstRemoved);
+            panelListener.refreshSelection();
+        }
+        for (ImgPreviewXPath img : modified) {
+            buildPreviewInBg(img);
+        }
+        if (!present.isEmpty()) {
+            insertImgs(new ArrayList<DirectoryScanner.ScannedImage>(present.values()));
+        }
+        imgPanel.repaint();
+        LOGGER.info("{} images added, {} removed, {} renamed and {} modified in {} by other programs",
+                present.size(), removedCount, renamedCount, modified.size(), currentDirectory);
+        if (!conflicts.isEmpty()) {
+            JOptionPane.showMessageDialog(frame, String.join("\n", conflicts),
+                    resources.getString(SYNC_CONFLICTS_TITLE), JOptionPane.WARNING_MESSAGE);
         }
     }
 
-    private void removeImgs() {
+    /**
+     * Insert a chunk of scanned images at their place in the image list and
+     * queue the build of their previews. Called on the EDT.
+     */
+    private void insertImgs(List<DirectoryScanner.ScannedImage> chunk) {
+        List<ImgPreviewXPath> imgs = new ArrayList<ImgPreviewXPath>(chunk.size());
+        for (DirectoryScanner.ScannedImage scannedImage : chunk) {
+            imgs.add(scannedImage.getImage());
+        }
+        if (!isSorted(imgs)) {
+            imgs.sort(IMAGE_ORDER);
+        }
+        int firstInserted;
         synchronized (imageList) {
+            // Merge of two sorted lists, from their end, in place: only the
+            // images after the first inserted one are moved. The images
+            // already inserted go first on ties, so the result is the same as
+            // a stable sort of the whole directory
+            int i = imageList.size() - 1;
+            int j = imgs.size() - 1;
+            imageList.addAll(imgs);
+            for (int k = imageList.size() - 1; j >= 0; k--) {
+                if (i >= 0 && IMAGE_ORDER.compare(imgs.get(j), imageList.get(i)) < 0) {
+                    imageList.set(k, imageList.get(i--));
+                } else {
+                    imageList.set(k, imgs.get(j--));
+                }
+            }
+            firstInserted = i + 1;
+        }
+        // The grid must know the positions of the images before their
+        // previews are prioritized
+        imgPanel.modelChanged(firstInserted);
+        // Previews already in the disk cache are queued first, they are much
+        // faster to load than the ones to decode
+        for (DirectoryScanner.ScannedImage scannedImage : chunk) {
+            if (scannedImage.isDiskCached()) {
+                buildPreviewInBg(scannedImage.getImage());
+            }
+        }
+        for (DirectoryScanner.ScannedImage scannedImage : chunk) {
+            if (!scannedImage.isDiskCached() && scannedImage.getImage().getThumbnail() == null) {
+                buildPreviewInBg(scannedImage.getImage());
+            }
+        }
+        panelListener.refreshSelection();
+        int cachedCount = 0;
+        for (ImgPreviewXPath img : imgs) {
+            if (img.getThumbnail() != null) {
+                cachedCount++;
+            }
+        }
+        metrics.thumbnailsDisplayed(cachedCount);
+    }
+
+    /**
+     * @return true if the images are in the display order (e.g. a folder
+     *         sorted by the recursive scan)
+     */
+    private static boolean isSorted(List<ImgPreviewXPath> imgs) {
+        for (int i = 1; i < imgs.size(); i++) {
+            if (IMAGE_ORDER.compare(imgs.get(i - 1), imgs.get(i)) > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void scanDone(DirectoryScanner scanner, long start) {
+        if (scanner.isCancelled()) {
+            return;
+        }
+        updateWatcher();
+        updateUndoButton();
+        try {
+            LOGGER.info("{} images found in {} in {} ms", scanner.get(), currentDirectory,
+                    System.currentTimeMillis() - start);
+        } catch (InterruptedException | ExecutionException e) {
+            LOGGER.error("Unable to list the images of {}", currentDirectory, e);
+        }
+        LOGGER.info("Thumbnail memory cache : {} hits, {} misses, {} thumbnails, {}/{} bytes used ({} per thumbnail)",
+                thumbnailMemoryCache.getHitCount(), thumbnailMemoryCache.getMissCount(),
+                thumbnailMemoryCache.getCount(), thumbnailMemoryCache.getSize(), thumbnailMemoryCache.getMaxSize(),
+                thumbnailMemoryCache.getBytesPerThumbnail());
+    }
+
+    /**
+     * Delete the removed images and rename the images in the displayed order,
+     * through the journal of each directory, in background. The images are
+     * renamed in their own folder, in the order they are displayed, several
+     * folders in parallel.
+     */
+    private void apply() {
+        if (currentDirectory == null || !currentDirectory.exists()) {
+            return;
+        }
+        List<ImgPreviewXPath> imgs;
+        Map<Path, List<Path>> deletes = new LinkedHashMap<Path, List<Path>>();
+        synchronized (imageList) {
+            imgs = new ArrayList<ImgPreviewXPath>(imageList);
             for (String deletedFile : deletedFiles) {
-                LOGGER.info("Delete : {}", deletedFile);
-                new File(deletedFile).delete();
+                Path delete = Paths.get(deletedFile).toAbsolutePath().normalize();
+                deletes.computeIfAbsent(delete.getParent(), folder -> new ArrayList<Path>()).add(delete);
             }
             deletedFiles.clear();
         }
+        Map<Path, List<Path>> images = new LinkedHashMap<Path, List<Path>>();
+        if (!recursive) {
+            images.put(currentDirectory.toPath(), new ArrayList<Path>(imgs.size()));
+        }
+        for (ImgPreviewXPath img : imgs) {
+            // Keyed as the current directory, a folder must not be applied
+            // twice in parallel
+            Path image = Paths.get(img.getAbsolutePath()).toAbsolutePath().normalize();
+            images.computeIfAbsent(image.getParent(), folder -> new ArrayList<Path>()).add(image);
+        }
+        RenamePlanner renamePlanner = new RenamePlanner(minimalRenameCheckBox.isSelected());
+        Map<Path, List<RenameEngine.Rename>> renames = new LinkedHashMap<Path, List<RenameEngine.Rename>>();
+        List<RenameEngine.Rename> allRenames = new ArrayList<RenameEngine.Rename>();
+        int plannedCount = 0;
+        for (Map.Entry<Path, List<Path>> folder : images.entrySet()) {
+            List<RenameEngine.Rename> folderRenames = renamePlanner.planRenames(folder.getKey(), folder.getValue());
+            int folderPlannedCount = 0;
+            for (RenameEngine.Rename rename : folderRenames) {
+                if (!rename.getSource().equals(rename.getTarget())) {
+                    folderPlannedCount++;
+                }
+            }
+            // The unchanged folders of a tree are not applied
+            if (!recursive || folderPlannedCount > 0 || deletes.containsKey(folder.getKey())) {
+                renames.put(folder.getKey(), folderRenames);
+                allRenames.addAll(folderRenames);
+                plannedCount += folderPlannedCount;
+            }
+        }
+        Set<Path> directories = new HashSet<Path>(renames.keySet());
+        directories.addAll(deletes.keySet());
+        LOGGER.info("{} files to delete, {} of {} images to rename in {} folders of {}",
+                deletedCount(deletes), plannedCount, imgs.size(), directories.size(), currentDirectory);
+        ApplyWorker.Operation operation;
+        if (directories.size() == 1) {
+            Path directory = directories.iterator().next();
+            operation = progress -> reorderApplier.apply(directory,
+                    deletes.getOrDefault(directory, Collections.<Path> emptyList()),
+                    renames.getOrDefault(directory, Collections.<RenameEngine.Rename> emptyList()), progress);
+        } else {
+            operation = progress -> folderApplier.applyAll(deletes, renames, FOLDER_THREADS, progress);
+        }
+        Set<Path> undoable = undoableDirectories;
+        runApply(operation, result -> {
+            updatePaths(allRenames);
+            imgPanel.repaint();
+            undoable.addAll(directories);
+            if (result != null) {
+                undoable.removeAll(result.getDirectoryErrors().keySet());
+                synchronized (imageList) {
+                    // Deleted again by the next Apply
+                    for (Path directory : result.getDirectoryErrors().keySet()) {
+                        for (Path delete : deletes.getOrDefault(directory, Collections.<Path> emptyList())) {
+                            deletedFiles.add(delete.toString());
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    private static int deletedCount(Map<Path, List<Path>> deletes) {
+        int count = 0;
+        for (List<Path> folderDeletes : deletes.values()) {
+            count += folderDeletes.size();
+        }
+        return count;
     }
 
-    private void renameImgs() {
-        if (currentDirectory == null || !currentDirectory.exists()) {
+    /**
+     * Run an Apply in background, the other Apply and directory actions are
+     * disabled until it is done.
+     *
+     * @param operation
+     *            the Apply
+     * @param done
+     *            called on the EDT once the Apply is done, with its result
+     *            (null if it failed)
+     */
+    private void runApply(ApplyWorker.Operation operation, Consumer<ReorderApplier.Result> done) {
+        File directory = currentDirectory;
+        setApplyRunning(true);
+        ApplyWorker worker = new ApplyWorker(operation);
+        worker.addPropertyChangeListener(e -> {
+            if ("progress".equals(e.getPropertyName())) {
+                applyProgressBar.setValue((Integer) e.getNewValue());
+            } else if (worker.isDone() && "state".equals(e.getPropertyName())) {
+                ReorderApplier.Result result = null;
+                try {
+                    result = worker.get();
+                } catch (InterruptedException | ExecutionException ex) {
+                    LOGGER.error("Unable to apply the changes in {}", directory, ex);
+                }
+                metrics.applyDone(result);
+                done.accept(result);
+                setApplyRunning(false);
+                if (result != null) {
+                    reportFailures(result);
+                }
+            }
+        });
+        worker.execute();
+    }
+
+    private void setApplyRunning(boolean running) {
+        applyRunning = running;
+        updateWatcher();
+        applyButton.setEnabled(!running);
+        fileChooserButton.setEnabled(!running);
+        recursiveCheckBox.setEnabled(!running);
+        applyProgressBar.setValue(0);
+        applyProgressBar.setVisible(running);
+        if (running) {
+            undoButton.setEnabled(false);
+        } else {
+            updateUndoButton();
+        }
+    }
+
+    /**
+     * Show the files which couldn't be deleted or renamed. The files which
+     * couldn't be deleted are deleted again by the next Apply.
+     */
+    private void reportFailures(ReorderApplier.Result result) {
+        List<String> failures = new ArrayList<String>();
+        synchronized (imageList) {
+            for (Map.Entry<Path, IOException> error : result.getDeleteErrors().entrySet()) {
+                deletedFiles.add(error.getKey().toString());
+                failures.add(error.getKey().getFileName() + " (" + error.getValue().getClass().getSimpleName() + ")");
+            }
+        }
+        for (Map.Entry<Path, IOException> error : result.getDirectoryErrors().entrySet()) {
+            failures.add(error.getKey() + " (" + error.getValue().getClass().getSimpleName() + ")");
+        }
+        for (RenameEngine.Rename rename : result.getRenames()) {
+            if (rename.getError() != null) {
+                failures.add(rename.getSource().getFileName() + " -> " + rename.getTarget().getFileName() + " ("
+                        + rename.getError().getClass().getSimpleName() + ")");
+            }
+        }
+        if (failures.isEmpty()) {
             return;
         }
-        int i = 0;
-        boolean renameFailed = false;
+        LOGGER.error("{} files of {} can't be deleted or renamed", failures.size(), currentDirectory);
+        StringBuilder message = new StringBuilder(
+                String.format(resources.getString(APPLY_FAILURES_MESSAGE), failures.size()));
+        for (String failure : failures.subList(0, Math.min(failures.size(), MAX_REPORTED_FAILURES))) {
+            message.append('\n').append(failure);
+        }
+        if (failures.size() > MAX_REPORTED_FAILURES) {
+            message.append("\n...");
+        }
+        JOptionPane.showMessageDialog(frame, message.toString(), resources.getString(APPLY_FAILURES_TITLE),
+                JOptionPane.WARNING_MESSAGE);
+    }
+
+    /**
+     * Update the path of the images (and of their thumbnails in the caches)
+     * with the renames.
+     */
+    private void updatePaths(List<RenameEngine.Rename> renames) {
+        Map<String, Path> newPaths = new HashMap<String, Path>();
+        for (RenameEngine.Rename rename : renames) {
+            if (!rename.getPath().equals(rename.getSource())) {
+                newPaths.put(rename.getSource().toString(), rename.getPath());
+            }
+        }
         synchronized (imageList) {
             for (ImgPreviewXPath img : imageList) {
-                File source = new File(img.getAbsolutePath());
-                String newName = String.format("%04d_", i++) + source.getName().replaceFirst("^[0-9]+_", "");
-                File dest = new File(currentDirectory, newName);
-                if (!source.equals(dest)) {
-                    if (dest.exists() || !source.renameTo(dest)) {
-                        LOGGER.error("Can't rename {} in {}", source, dest);
-                        renameFailed = true;
-                    } else {
-                        img.setAbsolutePath(dest.getAbsolutePath());
-                        img.getPreview().setToolTipText(dest.getName());
-                    }
+                Path newPath = newPaths.get(img.getAbsolutePath());
+                if (newPath != null) {
+                    String path = newPath.toString();
+                    thumbnailDiskCache.rename(img.getAbsolutePath(), path);
+                    thumbnailMemoryCache.rename(img.getAbsolutePath(), path);
+                    img.setAbsolutePath(path);
                 }
             }
         }
-        if (renameFailed) {
-            displayImgsFromCurrentDirectory();
+    }
+
+    /**
+     * Revert the renames of the last Apply of the displayed directories in
+     * background, and display the images in their restored order.
+     */
+    private void undo() {
+        List<Path> directories = new ArrayList<Path>(undoableDirectories);
+        if (directories.isEmpty()) {
+            return;
         }
+        runApply(progress -> directories.size() == 1 ? reorderApplier.undo(directories.get(0), progress)
+                : folderApplier.undoAll(directories, FOLDER_THREADS, progress), result -> {
+                    if (result != null) {
+                        updatePaths(result.getRenames());
+                    }
+                    displayImgsFromCurrentDirectory();
+                });
     }
 
-    private void apply() {
-        removeImgs();
-        renameImgs();
+    /**
+     * Complete the last Apply of a directory if it was interrupted, and check
+     * if it can be undone. Called in background before the directory is
+     * listed.
+     *
+     * @param undoable
+     *            set of the undoable directories, the directory is added to
+     *            it if its last Apply can be undone
+     */
+    private void prepareDirectory(Path directory, Set<Path> undoable) {
+        try {
+            ReorderApplier.Result result = reorderApplier.recover(directory);
+            if (result != null && result.getRenameFailures() > 0) {
+                LOGGER.error("{} images of {} can't be renamed", result.getRenameFailures(), directory);
+            }
+        } catch (IOException e) {
+            LOGGER.error("Unable to complete the interrupted Apply in {}", directory, e);
+        } catch (InterruptedException e) {
+            LOGGER.error("Recovery of the interrupted Apply in {} interrupted", directory, e);
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (reorderApplier.canUndo(directory)) {
+                undoable.add(directory);
+            }
+        } catch (IOException e) {
+            LOGGER.error("Unable to read the journal of {}", directory, e);
+        }
+    }
+
+    private void updateUndoButton() {
+        undoButton.setEnabled(!applyRunning && !undoableDirectories.isEmpty());
     }
 
     private void setCurrentDir(File currentDir) {
-        this.currentDirectory = currentDir;
+        this.currentDirectory = currentDir.getAbsoluteFile().toPath().normalize().toFile();
         frame.setTitle(String.format(resources.getString(WINDOW_TITLE), currentDir.getAbsolutePath()));
     }
 
@@ -264,7 +857,33 @@ public class ImgReorderApp {
     public ImgReorderApp(String dirPath) {
 
         resources = ResourceBundle.getBundle(RESOURCES);
-        resetPreviewExecutor();
+        thumbnailDecoder = new ThumbnailDecoder() {
+
+            @Override
+            protected BufferedImage decodeSubsampled(ImageInputStream input, int w, int h) throws IOException {
+                long start = metrics.startTiming();
+                BufferedImage img = super.decodeSubsampled(input, w, h);
+                metrics.decodeDone(start);
+                return img;
+            }
+
+            @Override
+            protected BufferedImage resize(BufferedImage img, int w, int h) {
+                long start = metrics.startTiming();
+                BufferedImage resized = super.resize(img, w, h);
+                metrics.scaleDone(start);
+                return resized;
+            }
+
+        };
+        reorderApplier = new ReorderApplier(new RenameEngine(RENAME_THREADS), DELETE_THREADS);
+        folderApplier = new ReorderApplier(new RenameEngine(RENAME_THREADS / FOLDER_THREADS),
+                DELETE_THREADS / FOLDER_THREADS);
+        thumbnailDiskCache = new ThumbnailDiskCache(new File(System.getProperty("user.home"), THUMBNAIL_CACHE_DIR),
+                THUMBNAIL_CACHE_MAX_SIZE);
+        Runtime.getRuntime().addShutdownHook(new Thread(thumbnailDiskCache::close));
+        thumbnailMemoryCache = new ThumbnailMemoryCache(
+                Long.getLong(MEMORY_CACHE_SIZE_PROPERTY, DEFAULT_MEMORY_CACHE_SIZE));
 
         imageList = new ArrayList<ImgPreviewXPath>();
         deletedFiles = new ArrayList<String>();
@@ -280,21 +899,26 @@ public class ImgReorderApp {
 
         frame.setLayout(new BorderLayout());
 
-        imgPanel = new JPanel();
-        imgPanel.setLayout(new WrapLayout(WrapLayout.LEFT));
+        imgPanel = new ThumbnailGrid(imageList, ICON_WIDTH, ICON_HEIGHT, thumbnailMemoryCache, this::buildPreviewInBg);
         panelListener = new PanelListener(imgPanel, imageList, deletedFiles);
         imgPanel.addMouseListener(panelListener);
         KeyboardFocusManager manager = KeyboardFocusManager.getCurrentKeyboardFocusManager();
         manager.addKeyEventDispatcher(panelListener);
 
-        JScrollPane scrollPanel = new JScrollPane(imgPanel);
+        scrollPanel = new JScrollPane(imgPanel);
         scrollPanel.setMinimumSize(new Dimension(WINDOWS_WIDTH, WINDOWS_HEIGHT));
         frame.getContentPane().add(scrollPanel, BorderLayout.CENTER);
+        decodeExecutor = new DecodeExecutor(Runtime.getRuntime().availableProcessors(), DECODE_BUFFER_SIZE);
+        resetPreviewExecutor();
+        metrics = new PipelineMetrics(() -> buildPreviewExecutor, decodeExecutor, thumbnailMemoryCache);
+        metrics.register();
+        new Timer(STATS_PERIOD, e -> logPipelineStats()).start();
+        previewPublisher = new PreviewPublisher(imgPanel, g -> buildPreviewExecutor.isCurrentGeneration(g), metrics);
 
         JPanel toolBar = new JPanel();
         frame.getContentPane().add(toolBar, BorderLayout.SOUTH);
 
-        JButton fileChooserButton = new JButton(resources.getString(DIRECTORY_CHOOSER_BUTTON_LAB));
+        fileChooserButton = new JButton(resources.getString(DIRECTORY_CHOOSER_BUTTON_LAB));
         fileChooserButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
                 openDirectoryChooser();
@@ -302,7 +926,7 @@ public class ImgReorderApp {
         });
         toolBar.add(fileChooserButton);
 
-        JButton applyButton = new JButton(resources.getString(APPLY_BUTTON_LAB));
+        applyButton = new JButton(resources.getString(APPLY_BUTTON_LAB));
         applyButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
                 apply();
@@ -310,6 +934,33 @@ public class ImgReorderApp {
         });
         toolBar.add(applyButton);
 
+        undoButton = new JButton(resources.getString(UNDO_BUTTON_LAB));
+        undoButton.setEnabled(false);
+        undoButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                undo();
+            }
+        });
+        toolBar.add(undoButton);
+
+        applyProgressBar = new JProgressBar();
+        applyProgressBar.setStringPainted(true);
+        applyProgressBar.setVisible(false);
+        toolBar.add(applyProgressBar);
+
+        minimalRenameCheckBox = new JCheckBox(resources.getString(MINIMAL_RENAME_CHECKBOX_LAB));
+        toolBar.add(minimalRenameCheckBox);
+
+        recursiveCheckBox = new JCheckBox(resources.getString(RECURSIVE_CHECKBOX_LAB));
+        recursiveCheckBox.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                if (currentDirectory != null && currentDirectory.exists()) {
+                    displayImgsFromCurrentDirectory();
+                }
+            }
+        });
+        toolBar.add(recursiveCheckBox);
+
         frame.pack();
         frame.setLocationByPlatform(true);
         frame.setLocationRelativeTo(null);
@@ -331,10 +982,14 @@ public class ImgReorderApp {
      * Start the reorder image application
      * 
      * @param args
-     *            the directory to open can be precise in the command line
+     *            the directory to open can be precise in the command line,
+     *            or --batch followed by the options of {@link BatchReorder}
+     *            to reorder without display
      */
     public static void main(String args[]) {
-        if (args != null && args.length > 1) {
+        if (args != null && args.length > 0 && BatchReorder.BATCH_OPTION.equals(args[0])) {
+            BatchReorder.main(Arrays.copyOfRange(args, 1, args.length));
+        } else if (args != null && args.length > 0) {
             new ImgReorderApp(args[0]);
         } else {
             new ImgReorderApp();
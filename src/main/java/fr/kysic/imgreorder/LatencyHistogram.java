@@ -0,0 +1,188 @@
+package fr.kysic.imgreorder;
+
+import java.beans.ConstructorProperties;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations, with power of 2 buckets (in ns).<br>
+ * Recording is lock free and allocation free (one striped counter per bucket),
+ * so it can be called by all the worker threads for each image. Percentiles
+ * are approximated by the upper bound of their bucket (at most twice the
+ * actual value, and never more than the maximum).
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKET_COUNT = 64;
+
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+    /**
+     * Summary of a histogram, in ms (a composite value for JMX).
+     */
+    public static class Summary {
+
+        private final long count;
+        private final double meanMillis;
+        private final double p50Millis;
+        private final double p90Millis;
+        private final double p99Millis;
+        private final double maxMillis;
+
+        /**
+         * @param count
+         *            number of durations
+         * @param meanMillis
+         *            mean duration
+         * @param p50Millis
+         *            median duration
+         * @param p90Millis
+         *            90th percentile
+         * @param p99Millis
+         *            99th percentile
+         * @param maxMillis
+         *            maximal duration
+         */
+        @ConstructorProperties({ "count", "meanMillis", "p50Millis", "p90Millis", "p99Millis", "maxMillis" })
+        public Summary(long count, double meanMillis, double p50Millis, double p90Millis, double p99Millis,
+                double maxMillis) {
+            this.count = count;
+            this.meanMillis = meanMillis;
+            this.p50Millis = p50Millis;
+            this.p90Millis = p90Millis;
+            this.p99Millis = p99Millis;
+            this.maxMillis = maxMillis;
+        }
+
+        /**
+         * @return the number of durations
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the mean duration
+         */
+        public double getMeanMillis() {
+            return meanMillis;
+        }
+
+        /**
+         * @return the median duration
+         */
+        public double getP50Millis() {
+            return p50Millis;
+        }
+
+        /**
+         * @return the 90th percentile
+         */
+        public double getP90Millis() {
+            return p90Millis;
+        }
+
+        /**
+         * @return the 99th percentile
+         */
+        public double getP99Millis() {
+            return p99Millis;
+        }
+
+        /**
+         * @return the maximal duration
+         */
+        public double getMaxMillis() {
+            return maxMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d, mean %.1f ms, p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms", count,
+                    meanMillis, p50Millis, p90Millis, p99Millis, maxMillis);
+        }
+
+    }
+
+    private final LongAdder[] buckets = new LongAdder[BUCKET_COUNT];
+
+    private final LongAdder total = new LongAdder();
+
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Create an empty histogram.
+     */
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param nanos
+     *            a duration, in ns
+     */
+    public void record(long nanos) {
+        long duration = Math.max(0, nanos);
+        // Bucket i holds the durations in [2^(i-1), 2^i)
+        buckets[Math.min(BUCKET_COUNT - 1, BUCKET_COUNT - Long.numberOfLeadingZeros(duration))].increment();
+        total.add(duration);
+        max.accumulate(duration);
+    }
+
+    /**
+     * Record the duration since a start time.
+     *
+     * @param startNanos
+     *            the start time, from {@link System#nanoTime()}
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return the number of recorded durations
+     */
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * @return the summary of the recorded durations (not atomic with the
+     *         recordings in progress)
+     */
+    public Summary getSummary() {
+        long[] counts = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets[i].sum();
+            count += counts[i];
+        }
+        if (count == 0) {
+            return new Summary(0, 0, 0, 0, 0, 0);
+        }
+        double maxMillis = max.get() / NANOS_PER_MILLI;
+        return new Summary(count, total.sum() / NANOS_PER_MILLI / count,
+                Math.min(maxMillis, getPercentile(counts, count, 0.5)),
+                Math.min(maxMillis, getPercentile(counts, count, 0.9)),
+                Math.min(maxMillis, getPercentile(counts, count, 0.99)), maxMillis);
+    }
+
+    private static double getPercentile(long[] counts, long count, double percentile) {
+        long rank = (long) Math.ceil(percentile * count);
+        long cumulated = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            cumulated += counts[i];
+            if (cumulated >= rank) {
+                return i == 0 ? 0 : Math.scalb(1.0, i) / NANOS_PER_MILLI;
+            }
+        }
+        return Math.scalb(1.0, BUCKET_COUNT - 1) / NANOS_PER_MILLI;
+    }
+
+}
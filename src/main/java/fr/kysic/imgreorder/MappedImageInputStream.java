@@ -0,0 +1,343 @@
+package fr.kysic.imgreorder;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Image stream reading a file through its memory mapping, or an image already
+ * in a buffer, without copying the data to an intermediate heap buffer.<br>
+ * The beginning of a file is read first in a small buffer, so that header
+ * only reads (image size, EXIF thumbnail) cost a single read, a big file is
+ * mapped once the reader goes further (a full decode). The small files (for
+ * which a mapping costs more than a read), and the files of remote
+ * filesystems (where page faults are network round trips) are not mapped:
+ * beyond the first block, they are read through the file channel by blocks of
+ * up to 1 MB in a direct buffer allocated once per stream (a heap buffer
+ * would be filled through a temporary direct buffer, an extra copy).<br>
+ * A mapping is dropped as soon as the stream is closed (or the data read by
+ * {@link #readFully(Path)} released) rather than when it is garbage
+ * collected: a mapped file can't be renamed or deleted on Windows. A read in
+ * a mapped file truncated by another program raises an InternalError, which
+ * the JVM may throw a little after the read: it must be caught around the
+ * whole decoding.<br>
+ * {@link MappedImageInputStreamSpi} makes it the stream created by ImageIO for
+ * files.
+ */
+public class MappedImageInputStream extends ImageInputStreamImpl {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MappedImageInputStream.class);
+
+    /**
+     * Size of the first block read from the files, enough for the headers.
+     */
+    private static final int FIRST_BLOCK_SIZE = 16 * 1024;
+
+    /**
+     * Size of the direct buffer in which the files not mapped are read.
+     */
+    private static final int MAX_BLOCK_SIZE = 1024 * 1024;
+
+    /**
+     * Minimal size of the files mapped.
+     */
+    private static final int MAP_THRESHOLD = 1024 * 1024;
+
+    /**
+     * sun.misc.Unsafe.invokeCleaner(ByteBuffer) unmapping a buffer, null if
+     * it is not available (the mappings are then dropped when they are garbage
+     * collected).
+     */
+    private static final Method INVOKE_CLEANER;
+
+    private static final Object UNSAFE;
+
+    static {
+        Method invokeCleaner = null;
+        Object unsafe = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.debug("Mapped buffers can't be unmapped explicitly", e);
+            invokeCleaner = null;
+        }
+        INVOKE_CLEANER = invokeCleaner;
+        UNSAFE = unsafe;
+    }
+
+    /**
+     * File store types of the network filesystems.
+     */
+    private static final Set<String> REMOTE_FILE_STORE_TYPES = new HashSet<String>(Arrays.asList("nfs", "nfs4",
+            "cifs", "smbfs", "smb2", "smb3", "afpfs", "webdav", "davfs", "fuse.sshfs", "sshfs", "9p", "afs", "ncpfs",
+            "fuse.rclone", "fuse.s3fs", "lustre", "gpfs", "glusterfs", "fuse.glusterfs", "ceph", "fuse.ceph"));
+
+    /**
+     * Whether the files of a directory can be mapped, by directory (the file
+     * store lookup lists the mount points).
+     */
+    private static final Map<Path, Boolean> MAPPABLE_DIRECTORIES = new ConcurrentHashMap<Path, Boolean>();
+
+    private FileChannel channel;
+
+    private final boolean map;
+
+    private final long length;
+
+    /**
+     * Data from {@link #bufferStart}, the whole file when it is mapped.
+     */
+    private ByteBuffer buffer;
+
+    private long bufferStart;
+
+    /**
+     * Stream an image already in memory (e.g. read by
+     * {@link #readFully(Path)}).
+     *
+     * @param data
+     *            the image file content, from its position to its limit (the
+     *            buffer is not modified)
+     */
+    public MappedImageInputStream(ByteBuffer data) {
+        this.channel = null;
+        this.map = false;
+        this.buffer = data.slice();
+        this.length = buffer.remaining();
+    }
+
+    /**
+     * Stream a file, mapped if it is local.
+     *
+     * @param file
+     *            the image file
+     * @throws IOException
+     *             if the file can't be opened
+     */
+    public MappedImageInputStream(Path file) throws IOException {
+        this(file, isMappable(file));
+    }
+
+    /**
+     * Stream a file.
+     *
+     * @param file
+     *            the image file
+     * @param map
+     *            false to read the file by blocks even if it is local and
+     *            big
+     * @throws IOException
+     *             if the file can't be opened
+     */
+    public MappedImageInputStream(Path file, boolean map) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            length = channel.size();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        this.map = map && length >= MAP_THRESHOLD && length <= Integer.MAX_VALUE;
+        buffer = ByteBuffer.allocate((int) Math.min(FIRST_BLOCK_SIZE, Math.max(1, length)));
+        buffer.limit(0);
+    }
+
+    /**
+     * Read a whole file, mapped and loaded in memory if it is big and local,
+     * or read in a heap buffer. The data must be released by
+     * {@link #release(ByteBuffer)} once it is used.
+     *
+     * @param file
+     *            the file to read
+     * @return the file content
+     * @throws IOException
+     *             if the file can't be read
+     */
+    public static ByteBuffer readFully(Path file) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = fileChannel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too big");
+            }
+            if (size >= MAP_THRESHOLD && isMappable(file)) {
+                MappedByteBuffer mapped = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                return mapped.load();
+            }
+            ByteBuffer data = ByteBuffer.allocate((int) size);
+            while (data.position() < data.capacity()) {
+                // By blocks, so that the temporary direct buffer of the
+                // channel (kept by the thread) stays small
+                data.limit((int) Math.min(data.capacity(), (long) data.position() + MAX_BLOCK_SIZE));
+                if (fileChannel.read(data, data.position()) < 0) {
+                    break;
+                }
+            }
+            data.flip();
+            return data;
+        }
+    }
+
+    /**
+     * Release data read by {@link #readFully(Path)}: a mapped file is
+     * unmapped, so it can be renamed or deleted. The data must not be used
+     * anymore.
+     *
+     * @param data
+     *            data returned by {@link #readFully(Path)}
+     */
+    public static void release(ByteBuffer data) {
+        if (data instanceof MappedByteBuffer) {
+            free(data);
+        }
+    }
+
+    /**
+     * Free the memory of a direct buffer (the whole buffer, not a slice) or
+     * unmap a mapped one, without waiting for its garbage collection.
+     */
+    private static void free(ByteBuffer buffer) {
+        if (INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.debug("Unable to free a direct buffer", e);
+        }
+    }
+
+    /**
+     * @param file
+     *            a file
+     * @return true if the file is on a local filesystem
+     */
+    public static boolean isMappable(Path file) {
+        Path directory = file.toAbsolutePath().getParent();
+        if (directory == null) {
+            return true;
+        }
+        Boolean mappable = MAPPABLE_DIRECTORIES.get(directory);
+        if (mappable == null) {
+            try {
+                FileStore store = Files.getFileStore(directory);
+                mappable = !REMOTE_FILE_STORE_TYPES.contains(store.type().toLowerCase());
+                LOGGER.debug("{} is on a {} filesystem, mapped : {}", directory, store.type(), mappable);
+            } catch (IOException e) {
+                mappable = false;
+            }
+            MAPPABLE_DIRECTORIES.put(directory, mappable);
+        }
+        return mappable;
+    }
+
+    /**
+     * Make the byte at the stream position available in the buffer.
+     *
+     * @return false at the end of the stream
+     */
+    private boolean fill() throws IOException {
+        if (streamPos >= length) {
+            return false;
+        }
+        if (channel == null || (streamPos >= bufferStart && streamPos < bufferStart + buffer.limit())) {
+            return true;
+        }
+        if (bufferStart > 0 || buffer.limit() > 0) {
+            // Beyond the first block
+            if (map) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+                bufferStart = 0;
+                // The mapping stays valid once the channel is closed
+                channel.close();
+                channel = null;
+                return true;
+            }
+            if (!buffer.isDirect() && buffer.capacity() < length) {
+                // A full read: the blocks are read in a direct buffer, reused
+                buffer = ByteBuffer.allocateDirect((int) Math.min(MAX_BLOCK_SIZE, length));
+            }
+        }
+        buffer.clear();
+        bufferStart = streamPos;
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, bufferStart + buffer.position()) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer.hasRemaining();
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (!fill()) {
+            return -1;
+        }
+        return buffer.get((int) (streamPos++ - bufferStart)) & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        if (off < 0 || len < 0 || off + len > b.length || off + len < 0) {
+            throw new IndexOutOfBoundsException();
+        }
+        bitOffset = 0;
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int position = (int) (streamPos - bufferStart);
+        int count = Math.min(len, buffer.limit() - position);
+        ByteBuffer view = buffer.duplicate();
+        view.position(position);
+        view.get(b, off, count);
+        streamPos += count;
+        return count;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        if (channel != null) {
+            channel.close();
+            if (buffer != null && buffer.isDirect()) {
+                free(buffer);
+            }
+        } else if (map) {
+            release(buffer);
+        }
+        buffer = null;
+    }
+
+}
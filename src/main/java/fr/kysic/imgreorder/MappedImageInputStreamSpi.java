@@ -0,0 +1,65 @@
+package fr.kysic.imgreorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Locale;
+
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.spi.ImageInputStreamSpi;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Provide a {@link MappedImageInputStream} to ImageIO for the files (e.g. for
+ * {@link javax.imageio.ImageIO#createImageInputStream(Object)}), instead of
+ * the default stream reading them through small heap buffers.
+ */
+public class MappedImageInputStreamSpi extends ImageInputStreamSpi {
+
+    private static final String VENDOR_NAME = "ImgReorder";
+
+    private static final String VERSION = "1.0";
+
+    /**
+     * Create the provider (to register with {@link #register()}).
+     */
+    public MappedImageInputStreamSpi() {
+        super(VENDOR_NAME, VERSION, File.class);
+    }
+
+    /**
+     * Register the provider in the ImageIO registry, ordered before the
+     * default provider for the files. Does nothing if it is already
+     * registered.
+     */
+    public static synchronized void register() {
+        IIORegistry registry = IIORegistry.getDefaultInstance();
+        if (registry.getServiceProviderByClass(MappedImageInputStreamSpi.class) != null) {
+            return;
+        }
+        MappedImageInputStreamSpi provider = new MappedImageInputStreamSpi();
+        registry.registerServiceProvider(provider, ImageInputStreamSpi.class);
+        Iterator<ImageInputStreamSpi> providers = registry.getServiceProviders(ImageInputStreamSpi.class, false);
+        while (providers.hasNext()) {
+            ImageInputStreamSpi other = providers.next();
+            if (other != provider && other.getInputClass() == File.class) {
+                registry.setOrdering(ImageInputStreamSpi.class, provider, other);
+            }
+        }
+    }
+
+    @Override
+    public ImageInputStream createInputStreamInstance(Object input, boolean useCache, File cacheDir)
+            throws IOException {
+        if (!(input instanceof File)) {
+            throw new IllegalArgumentException("Not a file : " + input);
+        }
+        return new MappedImageInputStream(((File) input).toPath());
+    }
+
+    @Override
+    public String getDescription(Locale locale) {
+        return "Memory mapped image input stream";
+    }
+
+}
@@ -1,7 +1,5 @@
 package fr.kysic.imgreorder;
 
-import java.awt.Color;
-import java.awt.Component;
 import java.awt.Desktop;
 import java.awt.KeyEventDispatcher;
 import java.awt.event.KeyEvent;
@@ -9,12 +7,8 @@ import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
-import java.util.Optional;
-
-import javax.swing.BorderFactory;
-import javax.swing.JComponent;
-import javax.swing.SwingUtilities;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,13 +20,13 @@ public class PanelListener implements MouseListener, KeyEventDispatcher {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(PanelListener.class);
 
-    private Component selectionBegin;
+    private ImgPreviewXPath selectionBegin;
 
-    private Component selectionEnd;
+    private ImgPreviewXPath selectionEnd;
 
-    private Component destination;
+    private ImgPreviewXPath destination;
 
-    private JComponent imgPanel;
+    private ThumbnailGrid imgPanel;
 
     private List<ImgPreviewXPath> imageList;
 
@@ -40,52 +34,38 @@ public class PanelListener implements MouseListener, KeyEventDispatcher {
 
     /**
      * @param imgPanel
-     *            panel containing image preview
+     *            grid displaying image preview
      * @param imageList
      *            ImgPreviewXPath list
      * @param deletedFiles
      *            list in which file to removed are added (before they are
      *            removed when the apply button is pressed).
      */
-    public PanelListener(JComponent imgPanel, List<ImgPreviewXPath> imageList, List<String> deletedFiles) {
+    public PanelListener(ThumbnailGrid imgPanel, List<ImgPreviewXPath> imageList, List<String> deletedFiles) {
         this.imgPanel = imgPanel;
         this.imageList = imageList;
         this.deletedFiles = deletedFiles;
         this.selectionEnd = null;
     }
 
-    private String getImgPath(Component c) {
-        Optional<ImgPreviewXPath> img = imageList.stream().filter(i -> i.getPreview() == c).findFirst();
-        return img.isPresent() ? img.get().getAbsolutePath() : null;
-    }
-
-    private int getIndexOf(Component c) {
-        int i = 0;
-        for (ImgPreviewXPath img : imageList) {
-            if (img.getPreview().equals(c)) {
-                return i;
-            }
-            i++;
-        }
-        return -1;
+    private int getIndexOf(ImgPreviewXPath c) {
+        return imgPanel.indexOf(c);
     }
 
+    /**
+     * Move the images from begin to end (included) so that the first one is
+     * inserted at dest, in a single pass on the list.<br>
+     * Moving forward, the selection goes after the image at dest. Moving
+     * backward, it goes before it.
+     */
     private void move(final int begin, final int end, final int dest) {
-        Component componentMoved;
-        ImgPreviewXPath reorderImgMoved;
-        int currentSource = begin;
-        int currentDest = dest;
-        for (int i = begin; i <= end; i++) {
-            reorderImgMoved = imageList.remove(currentSource);
-            componentMoved = imgPanel.getComponent(currentSource);
-            imgPanel.remove(currentSource);
-            imageList.add(currentDest, reorderImgMoved);
-            imgPanel.add(componentMoved, currentDest);
-            if (currentSource > currentDest) {
-                currentSource++;
-                currentDest++;
-            }
+        int count = end - begin + 1;
+        if (dest >= begin) {
+            Collections.rotate(imageList.subList(begin, dest + 1), -count);
+        } else {
+            Collections.rotate(imageList.subList(dest, end + 1), count);
         }
+        imgPanel.modelChanged(Math.min(begin, dest));
     }
     
     private void moveSelection() {
@@ -104,16 +84,19 @@ public class PanelListener implements MouseListener, KeyEventDispatcher {
     }
 
 
+    /**
+     * Highlight again the selected images, must be called when images are
+     * inserted in the image list.
+     */
+    public void refreshSelection() {
+        displaySelection();
+    }
+
     private void displaySelection() {
         synchronized (imageList) {
-            for (ImgPreviewXPath img : imageList) {
-                img.getPreview().setBorder(BorderFactory.createLineBorder(Color.black));
-            }
-            processSelection((b, e) -> imageList.subList(b, e + 1).forEach(
-                    c -> c.getPreview().setBorder(BorderFactory.createLineBorder(Color.blue, 3))));
+            imgPanel.setSelection(-1, -1);
+            processSelection((b, e) -> imgPanel.setSelection(b, e));
         }
-        imgPanel.revalidate();
-        imgPanel.repaint();
     }
 
     private interface SelectionProcessor {
@@ -136,12 +119,12 @@ public class PanelListener implements MouseListener, KeyEventDispatcher {
     }
 
     private void delete(int indexBegin, int indexEnd) {
-        // Reverse browsing because of "remove(i)".
-        for (int i = indexEnd; i >= indexBegin; i--) {
-            ImgPreviewXPath img = imageList.remove(i);
-            imgPanel.remove(img.getPreview());
-            deletedFiles.add(img.getAbsolutePath());
+        List<ImgPreviewXPath> deleted = imageList.subList(indexBegin, indexEnd + 1);
+        for (int i = deleted.size() - 1; i >= 0; i--) {
+            deletedFiles.add(deleted.get(i).getAbsolutePath());
         }
+        deleted.clear();
+        imgPanel.modelChanged(indexBegin);
     }
 
     private void deleteSelection() {
@@ -151,12 +134,10 @@ public class PanelListener implements MouseListener, KeyEventDispatcher {
         }
     }
 
-    private Component getComponentAt(MouseEvent me) {
-        Component componentClicked = SwingUtilities.getDeepestComponentAt(imgPanel, me.getX(), me.getY());
-        if (componentClicked != imgPanel) {
-            return componentClicked;
-        } else {
-            return null;
+    private ImgPreviewXPath getImgAt(MouseEvent me) {
+        synchronized (imageList) {
+            int index = imgPanel.indexAt(me.getPoint());
+            return index != -1 ? imageList.get(index) : null;
         }
     }
 
@@ -185,16 +166,13 @@ public class PanelListener implements MouseListener, KeyEventDispatcher {
         // Right button
         switch (me.getButton()) {
         case MouseEvent.BUTTON3:
-            destination = getComponentAt(me);
+            destination = getImgAt(me);
             moveSelection();
             break;
         case MouseEvent.BUTTON2:
-            Component c = getComponentAt(me);
-            if (c != null) {
-                String imgPath = getImgPath(c);
-                if (imgPath != null) {
-                    openImg(imgPath);
-                }
+            ImgPreviewXPath img = getImgAt(me);
+            if (img != null) {
+                openImg(img.getAbsolutePath());
             }
             break;
         }
@@ -206,7 +184,7 @@ public class PanelListener implements MouseListener, KeyEventDispatcher {
         // Left button
         if (me.getButton() == MouseEvent.BUTTON1) {
             synchronized (imageList) {
-                selectionBegin = getComponentAt(me);
+                selectionBegin = getImgAt(me);
                 selectionEnd = null;
                 displaySelection();
             }
@@ -219,7 +197,7 @@ public class PanelListener implements MouseListener, KeyEventDispatcher {
         // Left button
         if (me.getButton() == MouseEvent.BUTTON1) {
             synchronized (imageList) {
-                selectionEnd = getComponentAt(me);
+                selectionEnd = getImgAt(me);
                 displaySelection();
             }
         }
@@ -0,0 +1,343 @@
+package fr.kysic.imgreorder;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Metrics of the preview pipeline and of the Apply.<br>
+ * When they are enabled (with -D{@value #ENABLED_PROPERTY}=true or through
+ * the MXBean), each stage of the build of a preview records its duration in a
+ * {@link LatencyHistogram} (a few counter increments per image). When they
+ * are disabled, the stages aren't timed at all (see {@link #startTiming()}).
+ * The queues and the caches are read only when the metrics are. The metrics
+ * are registered as an MXBean and summarized in the log.
+ */
+public class PipelineMetrics implements PipelineMetricsMXBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PipelineMetrics.class);
+
+    /**
+     * Name of the MXBean.
+     */
+    public static final String OBJECT_NAME = "fr.kysic.imgreorder:type=PipelineMetrics";
+
+    /**
+     * System property enabling the metrics from the start.
+     */
+    public static final String ENABLED_PROPERTY = "imgreorder.metrics";
+
+    /**
+     * Start time of a stage which isn't timed.
+     */
+    private static final long NOT_TIMED = Long.MIN_VALUE;
+
+    private volatile boolean enabled = Boolean.getBoolean(ENABLED_PROPERTY);
+
+    private final LatencyHistogram readLatency = new LatencyHistogram();
+
+    private final LatencyHistogram decodeLatency = new LatencyHistogram();
+
+    private final LatencyHistogram scaleLatency = new LatencyHistogram();
+
+    private final LatencyHistogram publishLatency = new LatencyHistogram();
+
+    private final LatencyHistogram deleteLatency = new LatencyHistogram();
+
+    private final LatencyHistogram renameLatency = new LatencyHistogram();
+
+    private final LongAdder applyFailureCount = new LongAdder();
+
+    private final LongAdder diskCacheHitCount = new LongAdder();
+
+    private final LongAdder diskCacheMissCount = new LongAdder();
+
+    private final AtomicLong loadStart = new AtomicLong();
+
+    private final AtomicLong firstThumbnail = new AtomicLong(-1);
+
+    private final AtomicLong lastThumbnail = new AtomicLong(-1);
+
+    private final LongAdder thumbnailCount = new LongAdder();
+
+    private final Supplier<? extends ThreadPoolExecutor> readExecutor;
+
+    private final DecodeExecutor decodeExecutor;
+
+    private final ThumbnailMemoryCache memoryCache;
+
+    private long lastSummaryCount;
+
+    /**
+     * @param readExecutor
+     *            supplies the executor reading the images (it is replaced
+     *            when a directory is opened)
+     * @param decodeExecutor
+     *            the executor decoding the images
+     * @param memoryCache
+     *            the memory cache of the previews
+     */
+    public PipelineMetrics(Supplier<? extends ThreadPoolExecutor> readExecutor, DecodeExecutor decodeExecutor,
+            ThumbnailMemoryCache memoryCache) {
+        this.readExecutor = readExecutor;
+        this.decodeExecutor = decodeExecutor;
+        this.memoryCache = memoryCache;
+    }
+
+    /**
+     * Register the metrics in the platform MBean server.
+     */
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            LOGGER.error("Unable to register the metrics {}", OBJECT_NAME, e);
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return the start time of a stage, from {@link System#nanoTime()}, or a
+     *         marker telling the stage isn't timed if the metrics are disabled
+     */
+    public long startTiming() {
+        return enabled ? System.nanoTime() : NOT_TIMED;
+    }
+
+    private static void recordSince(LatencyHistogram histogram, long startNanos) {
+        if (startNanos != NOT_TIMED) {
+            histogram.recordSince(startNanos);
+        }
+    }
+
+    /**
+     * @param startNanos
+     *            start time of the read of an image, from
+     *            {@link #startTiming()}
+     */
+    public void readDone(long startNanos) {
+        recordSince(readLatency, startNanos);
+    }
+
+    /**
+     * @param startNanos
+     *            start time of the decode of an image, from
+     *            {@link #startTiming()}
+     */
+    public void decodeDone(long startNanos) {
+        recordSince(decodeLatency, startNanos);
+    }
+
+    /**
+     * @param startNanos
+     *            start time of the resize of an image, from
+     *            {@link #startTiming()}
+     */
+    public void scaleDone(long startNanos) {
+        recordSince(scaleLatency, startNanos);
+    }
+
+    /**
+     * @param startNanos
+     *            publication time of a preview, from {@link #startTiming()}
+     */
+    public void published(long startNanos) {
+        recordSince(publishLatency, startNanos);
+    }
+
+    /**
+     * @param hit
+     *            true if a preview has been found in the disk cache
+     */
+    public void diskCacheLookedUp(boolean hit) {
+        if (!enabled) {
+            return;
+        }
+        (hit ? diskCacheHitCount : diskCacheMissCount).increment();
+    }
+
+    /**
+     * Start the timing of a directory load (even if the metrics are disabled,
+     * so that they can be enabled during the load).
+     */
+    public void loadStarted() {
+        thumbnailCount.reset();
+        firstThumbnail.set(-1);
+        lastThumbnail.set(-1);
+        loadStart.set(System.nanoTime());
+    }
+
+    /**
+     * @param count
+     *            number of previews displayed for the current directory load
+     */
+    public void thumbnailsDisplayed(int count) {
+        if (enabled && count > 0) {
+            long delay = System.nanoTime() - loadStart.get();
+            firstThumbnail.compareAndSet(-1, delay);
+            lastThumbnail.set(delay);
+            thumbnailCount.add(count);
+        }
+    }
+
+    /**
+     * @param result
+     *            result of an Apply (or of an undo), null if it failed
+     */
+    public void applyDone(ReorderApplier.Result result) {
+        if (!enabled) {
+            return;
+        }
+        if (result == null) {
+            applyFailureCount.increment();
+            return;
+        }
+        if (result.getDeleteNanos() > 0) {
+            deleteLatency.record(result.getDeleteNanos());
+        }
+        if (result.getRenameNanos() > 0) {
+            renameLatency.record(result.getRenameNanos());
+        }
+        applyFailureCount.add(result.getDeleteErrors().size() + result.getRenameFailures());
+    }
+
+    @Override
+    public LatencyHistogram.Summary getReadLatency() {
+        return readLatency.getSummary();
+    }
+
+    @Override
+    public LatencyHistogram.Summary getDecodeLatency() {
+        return decodeLatency.getSummary();
+    }
+
+    @Override
+    public LatencyHistogram.Summary getScaleLatency() {
+        return scaleLatency.getSummary();
+    }
+
+    @Override
+    public LatencyHistogram.Summary getPublishLatency() {
+        return publishLatency.getSummary();
+    }
+
+    @Override
+    public LatencyHistogram.Summary getDeleteLatency() {
+        return deleteLatency.getSummary();
+    }
+
+    @Override
+    public LatencyHistogram.Summary getRenameLatency() {
+        return renameLatency.getSummary();
+    }
+
+    @Override
+    public long getApplyFailureCount() {
+        return applyFailureCount.sum();
+    }
+
+    @Override
+    public int getReadQueueSize() {
+        return readExecutor.get().getQueue().size();
+    }
+
+    @Override
+    public int getActiveReadThreads() {
+        return readExecutor.get().getActiveCount();
+    }
+
+    @Override
+    public int getDecodeQueueSize() {
+        return decodeExecutor.getQueue().size();
+    }
+
+    @Override
+    public int getActiveDecodeThreads() {
+        return decodeExecutor.getActiveCount();
+    }
+
+    @Override
+    public long getDecodeBufferedSize() {
+        return decodeExecutor.getBufferedSize();
+    }
+
+    @Override
+    public double getMemoryCacheHitRate() {
+        return getRate(memoryCache.getHitCount(), memoryCache.getMissCount());
+    }
+
+    @Override
+    public int getMemoryCacheCount() {
+        return memoryCache.getCount();
+    }
+
+    @Override
+    public long getBytesPerThumbnail() {
+        return memoryCache.getBytesPerThumbnail();
+    }
+
+    @Override
+    public double getDiskCacheHitRate() {
+        return getRate(diskCacheHitCount.sum(), diskCacheMissCount.sum());
+    }
+
+    private static double getRate(long hitCount, long missCount) {
+        return hitCount + missCount == 0 ? 0 : (double) hitCount / (hitCount + missCount);
+    }
+
+    @Override
+    public long getTimeToFirstThumbnailMillis() {
+        long delay = firstThumbnail.get();
+        return delay == -1 ? -1 : delay / 1000000;
+    }
+
+    @Override
+    public long getTimeToLastThumbnailMillis() {
+        long delay = lastThumbnail.get();
+        return delay == -1 ? -1 : delay / 1000000;
+    }
+
+    @Override
+    public long getThumbnailCount() {
+        return thumbnailCount.sum();
+    }
+
+    /**
+     * Log a summary of the metrics, if they are enabled and previews have been
+     * built or displayed since the last summary.
+     */
+    public void logSummary() {
+        if (!enabled) {
+            return;
+        }
+        long count = readLatency.getCount() + publishLatency.getCount();
+        if (count == lastSummaryCount) {
+            return;
+        }
+        lastSummaryCount = count;
+        LOGGER.info("Preview latencies : read {} ; decode {} ; scale {} ; publish {}", getReadLatency(),
+                getDecodeLatency(), getScaleLatency(), getPublishLatency());
+        LOGGER.info("Previews : {} displayed, first after {} ms, last after {} ms ; cache hit rates : memory {}%,"
+                + " disk {}% ; {} previews stored, {} bytes each", getThumbnailCount(), getTimeToFirstThumbnailMillis(),
+                getTimeToLastThumbnailMillis(), Math.round(getMemoryCacheHitRate() * 100),
+                Math.round(getDiskCacheHitRate() * 100), getMemoryCacheCount(), getBytesPerThumbnail());
+    }
+
+}
@@ -0,0 +1,121 @@
+package fr.kysic.imgreorder;
+
+/**
+ * Metrics of the preview pipeline and of the Apply, read through JMX (e.g.
+ * with JConsole).
+ */
+public interface PipelineMetricsMXBean {
+
+    /**
+     * @return true if the metrics are recorded
+     */
+    boolean isEnabled();
+
+    /**
+     * @param enabled
+     *            true to record the metrics, false to stop timing the preview
+     *            pipeline and the Apply
+     */
+    void setEnabled(boolean enabled);
+
+    /**
+     * @return the durations of the reads of the image files (or of their
+     *         preview in the disk cache)
+     */
+    LatencyHistogram.Summary getReadLatency();
+
+    /**
+     * @return the durations of the decodes of the images read
+     */
+    LatencyHistogram.Summary getDecodeLatency();
+
+    /**
+     * @return the durations of the resizes of the decoded images
+     */
+    LatencyHistogram.Summary getScaleLatency();
+
+    /**
+     * @return the delays between the build of a preview and its display by
+     *         the EDT
+     */
+    LatencyHistogram.Summary getPublishLatency();
+
+    /**
+     * @return the durations of the deletes of the Apply
+     */
+    LatencyHistogram.Summary getDeleteLatency();
+
+    /**
+     * @return the durations of the renames of the Apply (and undo)
+     */
+    LatencyHistogram.Summary getRenameLatency();
+
+    /**
+     * @return the number of files which couldn't be deleted or renamed
+     */
+    long getApplyFailureCount();
+
+    /**
+     * @return the number of images waiting to be read
+     */
+    int getReadQueueSize();
+
+    /**
+     * @return the number of threads reading images
+     */
+    int getActiveReadThreads();
+
+    /**
+     * @return the number of images read and waiting to be decoded
+     */
+    int getDecodeQueueSize();
+
+    /**
+     * @return the number of threads decoding images
+     */
+    int getActiveDecodeThreads();
+
+    /**
+     * @return the size of the image data read and waiting to be decoded
+     */
+    long getDecodeBufferedSize();
+
+    /**
+     * @return the ratio of the previews found in the memory cache
+     */
+    double getMemoryCacheHitRate();
+
+    /**
+     * @return the number of previews in the memory cache
+     */
+    int getMemoryCacheCount();
+
+    /**
+     * @return the mean memory used by a preview in the memory cache, in bytes
+     */
+    long getBytesPerThumbnail();
+
+    /**
+     * @return the ratio of the previews not in the memory cache found in the
+     *         disk cache
+     */
+    double getDiskCacheHitRate();
+
+    /**
+     * @return the delay between the start of the last directory load and the
+     *         display of its first preview, -1 if none is displayed yet
+     */
+    long getTimeToFirstThumbnailMillis();
+
+    /**
+     * @return the delay between the start of the last directory load and the
+     *         display of its last preview so far, -1 if none is displayed yet
+     */
+    long getTimeToLastThumbnailMillis();
+
+    /**
+     * @return the number of previews displayed for the last directory load
+     */
+    long getThumbnailCount();
+
+}
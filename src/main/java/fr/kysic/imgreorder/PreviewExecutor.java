@@ -0,0 +1,258 @@
+package fr.kysic.imgreorder;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.swing.JViewport;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.event.ChangeListener;
+
+/**
+ * Executor building the previews in the order of their distance to the
+ * visible part of the grid.<br>
+ * The previews in the viewport are built first, then the ones around it and
+ * finally the others (the priority of a task is computed when it is queued).
+ * When the viewport moves, the queued tasks are
+ * reprioritized so that the previews that scrolled far away are demoted behind
+ * the newly visible ones.<br>
+ * Each directory load starts a new generation of tasks: the tasks of the
+ * previous generations still queued are dropped and the running ones are
+ * considered as cancelled (see {@link #isCurrentTaskCancelled()}) so that they
+ * can stop early.<br>
+ * The tasks of this executor only read the image files: they are I/O bound,
+ * so it can run much more threads than there are cores, the decoding is
+ * continued in a {@link DecodeExecutor} (see
+ * {@link #continueCurrentTask(Runnable)}).
+ */
+public class PreviewExecutor extends ThreadPoolExecutor {
+
+    /**
+     * Delay (ms) without viewport change before queued tasks are
+     * reprioritized.
+     */
+    private static final int REPRIORITIZE_DELAY = 100;
+
+    private static final ThreadLocal<PreviewTask> CURRENT_TASK = new ThreadLocal<PreviewTask>();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private volatile long generation;
+
+    private final ThumbnailGrid grid;
+
+    private final JViewport viewport;
+
+    private final Timer reprioritizeTimer;
+
+    private final ChangeListener viewportListener;
+
+    private class PreviewTask implements Runnable, Comparable<PreviewTask> {
+
+        private final ImgPreviewXPath rimg;
+
+        private final Runnable task;
+
+        private final long order = sequence.getAndIncrement();
+
+        private final long taskGeneration = generation;
+
+        private volatile long priority;
+
+        PreviewTask(ImgPreviewXPath rimg, Runnable task) {
+            this.rimg = rimg;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            if (taskGeneration == generation) {
+                task.run();
+            }
+        }
+
+        boolean isCancelled() {
+            return taskGeneration != generation;
+        }
+
+        @Override
+        public int compareTo(PreviewTask other) {
+            int result = Long.compare(priority, other.priority);
+            return result != 0 ? result : Long.compare(order, other.order);
+        }
+
+    }
+
+    /**
+     * @param nbThreads
+     *            number of threads building previews
+     * @param grid
+     *            grid displaying the previews
+     * @param viewport
+     *            viewport of the grid
+     */
+    public PreviewExecutor(int nbThreads, ThumbnailGrid grid, JViewport viewport) {
+        super(nbThreads, nbThreads, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>());
+        this.grid = grid;
+        this.viewport = viewport;
+        reprioritizeTimer = new Timer(REPRIORITIZE_DELAY, e -> reprioritize());
+        reprioritizeTimer.setRepeats(false);
+        viewportListener = e -> reprioritizeTimer.restart();
+        viewport.addChangeListener(viewportListener);
+    }
+
+    /**
+     * Queue the build of a preview, with the priority of its distance to the
+     * current viewport. Must be called from the EDT, once the image is in the
+     * image list of the grid.
+     *
+     * @param rimg
+     *            the image whose preview is built
+     * @param task
+     *            the task building the preview
+     */
+    public void execute(ImgPreviewXPath rimg, Runnable task) {
+        PreviewTask previewTask = new PreviewTask(rimg, task);
+        synchronized (grid.getImageList()) {
+            previewTask.priority = getPriority(rimg, viewport.getViewRect());
+        }
+        super.execute(previewTask);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        super.execute(command instanceof PreviewTask ? command : new PreviewTask(null, command));
+    }
+
+    /**
+     * Start a new generation of tasks: the queued tasks are dropped and the
+     * running ones are cancelled. Must be called from the EDT.
+     *
+     * @return the new generation
+     */
+    public long newGeneration() {
+        long current = ++generation;
+        getQueue().removeIf(task -> ((PreviewTask) task).taskGeneration != current);
+        return current;
+    }
+
+    /**
+     * @param taskGeneration
+     *            generation of a task
+     * @return true if no generation has been started since the given one
+     */
+    public boolean isCurrentGeneration(long taskGeneration) {
+        return taskGeneration == generation;
+    }
+
+    /**
+     * @return the generation of the tasks now queued
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return true if the task run by the current thread has been superseded
+     *         by a new generation
+     */
+    public static boolean isCurrentTaskCancelled() {
+        PreviewTask task = CURRENT_TASK.get();
+        return task != null && task.isCancelled();
+    }
+
+    /**
+     * Wrap the continuation of the task run by the current thread so that it
+     * can be run by another executor: it is skipped if its generation has been
+     * superseded in the meantime and {@link #isCurrentTaskCancelled()} keeps
+     * working while it runs.
+     *
+     * @param next
+     *            the continuation of the current task
+     * @return the wrapped continuation
+     */
+    public static Runnable continueCurrentTask(Runnable next) {
+        PreviewTask task = CURRENT_TASK.get();
+        if (task == null) {
+            return next;
+        }
+        return () -> {
+            if (task.isCancelled()) {
+                return;
+            }
+            CURRENT_TASK.set(task);
+            try {
+                next.run();
+            } finally {
+                CURRENT_TASK.remove();
+            }
+        };
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        super.beforeExecute(t, r);
+        CURRENT_TASK.set((PreviewTask) r);
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+        CURRENT_TASK.remove();
+        super.afterExecute(r, t);
+    }
+
+    @Override
+    protected void terminated() {
+        SwingUtilities.invokeLater(() -> {
+            viewport.removeChangeListener(viewportListener);
+            reprioritizeTimer.stop();
+        });
+        super.terminated();
+    }
+
+    /**
+     * Recompute the priority of all the queued tasks from the current viewport
+     * position. Called on the EDT.
+     */
+    private void reprioritize() {
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        getQueue().drainTo(tasks);
+        if (tasks.isEmpty()) {
+            return;
+        }
+        Rectangle visible = viewport.getViewRect();
+        synchronized (grid.getImageList()) {
+            for (Runnable task : tasks) {
+                PreviewTask previewTask = (PreviewTask) task;
+                previewTask.priority = getPriority(previewTask.rimg, visible);
+            }
+        }
+        getQueue().addAll(tasks);
+    }
+
+    /**
+     * Must be called with the image list lock held.
+     *
+     * @param rimg
+     *            the image whose preview is built, null for a task not bound
+     *            to an image
+     * @param visible
+     *            the visible part of the grid
+     * @return the priority of the build of the preview (the lower the
+     *         sooner): the distance of the image to the visible part, the
+     *         lowest priority if the image is no more in the grid
+     */
+    private long getPriority(ImgPreviewXPath rimg, Rectangle visible) {
+        if (rimg == null) {
+            return 0;
+        }
+        int index = grid.indexOf(rimg);
+        return index != -1 ? grid.getDistance(index, visible) : Long.MAX_VALUE;
+    }
+
+}
@@ -0,0 +1,112 @@
+package fr.kysic.imgreorder;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongPredicate;
+
+import javax.swing.JComponent;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * Publish the previews built by the worker threads to the grid.<br>
+ * Built previews are collected in a concurrent queue and applied on the EDT
+ * in batches, at most once per frame, with a single repaint of the visible
+ * part of the grid per batch (the cells outside of it are painted with their
+ * new preview when they are scrolled in).
+ */
+public class PreviewPublisher {
+
+    /**
+     * Minimal delay (ms) between two batches, about one frame at 60 Hz.
+     */
+    private static final int FRAME_DELAY = 16;
+
+    private static class Publication {
+        private final ImgPreviewXPath rimg;
+        private final CompactThumbnail thumbnail;
+        private final long generation;
+        private final long publishTime;
+
+        Publication(ImgPreviewXPath rimg, CompactThumbnail thumbnail, long generation, long publishTime) {
+            this.rimg = rimg;
+            this.thumbnail = thumbnail;
+            this.generation = generation;
+            this.publishTime = publishTime;
+        }
+    }
+
+    private final Queue<Publication> pending = new ConcurrentLinkedQueue<Publication>();
+
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private final JComponent imgPanel;
+
+    private final LongPredicate isCurrentGeneration;
+
+    private final PipelineMetrics metrics;
+
+    private final Timer timer;
+
+    /**
+     * @param imgPanel
+     *            grid displaying the previews
+     * @param isCurrentGeneration
+     *            tell if previews of a given generation must still be
+     *            published (checked on the EDT)
+     * @param metrics
+     *            records the delays between the publications and the
+     *            displays
+     */
+    public PreviewPublisher(JComponent imgPanel, LongPredicate isCurrentGeneration, PipelineMetrics metrics) {
+        this.imgPanel = imgPanel;
+        this.isCurrentGeneration = isCurrentGeneration;
+        this.metrics = metrics;
+        timer = new Timer(FRAME_DELAY, e -> flush());
+    }
+
+    /**
+     * Queue a preview to be displayed. Can be called from any thread.
+     *
+     * @param rimg
+     *            the image whose preview is built
+     * @param thumbnail
+     *            the preview
+     * @param generation
+     *            generation of the task which built the preview
+     */
+    public void publish(ImgPreviewXPath rimg, CompactThumbnail thumbnail, long generation) {
+        pending.add(new Publication(rimg, thumbnail, generation, metrics.startTiming()));
+        if (scheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(timer::start);
+        }
+    }
+
+    /**
+     * Apply all the queued previews. Called on the EDT by the timer.
+     */
+    private void flush() {
+        int displayed = 0;
+        Publication publication;
+        while ((publication = pending.poll()) != null) {
+            if (isCurrentGeneration.test(publication.generation)) {
+                publication.rimg.setThumbnail(publication.thumbnail);
+                metrics.published(publication.publishTime);
+                displayed++;
+            }
+        }
+        if (displayed > 0) {
+            imgPanel.repaint(imgPanel.getVisibleRect());
+            metrics.thumbnailsDisplayed(displayed);
+        }
+        timer.stop();
+        scheduled.set(false);
+        // A preview may have been queued after the poll loop but before the
+        // flag reset, without scheduling a new batch
+        if (!pending.isEmpty() && scheduled.compareAndSet(false, true)) {
+            timer.start();
+        }
+    }
+
+}
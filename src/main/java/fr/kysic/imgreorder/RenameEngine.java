@@ -0,0 +1,335 @@
+package fr.kysic.imgreorder;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Rename a set of files to new names, whatever the order in which the new
+ * names are held by the files of the set.<br>
+ * The renames are done in two phases: first the files whose name is the new
+ * name of another file of the set are moved to a unique temporary name, then
+ * all the files are moved to their new name. The moves of a phase don't
+ * depend on each other, they are run in parallel. Files are never
+ * overwritten: a new name held by a file outside of the set is a failure of
+ * this rename only. A file moved to its temporary name whose rename fails is
+ * moved back once all the other moves are done.
+ */
+public class RenameEngine {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RenameEngine.class);
+
+    private static final String TEMPORARY_SUFFIX = ".imgreorder-%d.tmp";
+
+    private static final Pattern TEMPORARY_NAME = Pattern.compile("^\\.(.+)\\.imgreorder-[0-9]+\\.tmp$");
+
+    /**
+     * Follow the progress of the renames.
+     */
+    public interface Listener {
+
+        /**
+         * Called once all the files to move out of the way have been moved to
+         * their temporary name, before any file is moved to its new name.
+         */
+        default void firstPhaseDone() {
+            // Nothing
+        }
+
+        /**
+         * Called (from a worker thread) with each rename once it is done or
+         * failed.
+         *
+         * @param rename
+         *            the rename
+         */
+        void renamed(Rename rename);
+
+    }
+
+    /**
+     * A file to rename, and the result of its rename once it is applied.
+     */
+    public static class Rename {
+
+        private final Path source;
+
+        private final Path target;
+
+        private volatile Path path;
+
+        private volatile IOException error;
+
+        /**
+         * @param source
+         *            the file to rename
+         * @param target
+         *            its new path
+         */
+        public Rename(Path source, Path target) {
+            this.source = source;
+            this.target = target;
+            this.path = source;
+        }
+
+        /**
+         * @return the file to rename
+         */
+        public Path getSource() {
+            return source;
+        }
+
+        /**
+         * @return its new path
+         */
+        public Path getTarget() {
+            return target;
+        }
+
+        /**
+         * @return the path of the file now: the target if the rename
+         *         succeeded, else the source (or a temporary path if the file
+         *         couldn't even be moved back)
+         */
+        public Path getPath() {
+            return path;
+        }
+
+        /**
+         * @return the error which made the rename fail, null if it succeeded
+         */
+        public IOException getError() {
+            return error;
+        }
+
+        /**
+         * @return true if the file has its new name
+         */
+        public boolean isDone() {
+            return error == null && path.equals(target);
+        }
+
+    }
+
+    private final int nbThreads;
+
+    private final AtomicInteger temporaryCounter = new AtomicInteger();
+
+    /**
+     * @param nbThreads
+     *            number of renames run in parallel
+     */
+    public RenameEngine(int nbThreads) {
+        this.nbThreads = nbThreads;
+    }
+
+    /**
+     * Apply the renames, the result of each one is set in it.
+     *
+     * @param renames
+     *            the renames to apply, their targets must be distinct
+     * @return the number of renames which failed
+     * @throws InterruptedException
+     */
+    public int apply(Collection<Rename> renames) throws InterruptedException {
+        return apply(renames, rename -> {
+            // Nothing
+        });
+    }
+
+    /**
+     * Apply the renames, the result of each one is set in it.
+     *
+     * @param renames
+     *            the renames to apply, their targets must be distinct
+     * @param listener
+     *            follows the progress of the renames
+     * @return the number of renames which failed
+     * @throws InterruptedException
+     */
+    public int apply(Collection<Rename> renames, Listener listener) throws InterruptedException {
+        Set<Path> sources = new HashSet<Path>();
+        List<Rename> moves = new ArrayList<Rename>();
+        for (Rename rename : renames) {
+            if (rename.source.equals(rename.target)) {
+                listener.renamed(rename);
+            } else {
+                sources.add(rename.source);
+                moves.add(rename);
+            }
+        }
+        for (Rename rename : moves) {
+            if (sources.contains(rename.target)) {
+                // The target is freed by a rename of the first phase
+                continue;
+            }
+            if (Files.exists(rename.target, LinkOption.NOFOLLOW_LINKS)) {
+                fail(rename, new FileAlreadyExistsException(rename.target.toString()), listener);
+            }
+        }
+        // The files holding the target of another rename are moved out of
+        // the way first
+        Set<Path> targets = new HashSet<Path>();
+        for (Rename rename : moves) {
+            if (rename.error == null) {
+                targets.add(rename.target);
+            }
+        }
+        List<Rename> conflicting = new ArrayList<Rename>();
+        for (Rename rename : moves) {
+            if (rename.error == null && targets.contains(rename.source)) {
+                conflicting.add(rename);
+            }
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(nbThreads);
+        try {
+            runAll(executor, conflicting, rename -> moveToTemporary(rename, listener));
+            listener.firstPhaseDone();
+            runAll(executor, moves, rename -> {
+                if (rename.error == null) {
+                    moveToTarget(rename, listener);
+                }
+            });
+        } finally {
+            executor.shutdown();
+        }
+        moveBack(conflicting);
+        int failures = 0;
+        for (Rename rename : renames) {
+            if (rename.error != null) {
+                failures++;
+            }
+        }
+        return failures;
+    }
+
+    private void runAll(ExecutorService executor, List<Rename> renames, Consumer<Rename> move)
+            throws InterruptedException {
+        List<Future<?>> futures = new ArrayList<Future<?>>(renames.size());
+        for (Rename rename : renames) {
+            futures.add(executor.submit(() -> move.accept(rename)));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                LOGGER.error("Unexpected rename failure", e.getCause());
+            }
+        }
+    }
+
+    private void moveToTemporary(Rename rename, Listener listener) {
+        try {
+            Path temporary;
+            do {
+                // Temporary files may have been left by a previous run
+                temporary = rename.source.resolveSibling("." + rename.source.getFileName()
+                        + String.format(TEMPORARY_SUFFIX, temporaryCounter.getAndIncrement()));
+            } while (Files.exists(temporary, LinkOption.NOFOLLOW_LINKS));
+            move(rename.source, temporary);
+            rename.path = temporary;
+        } catch (IOException e) {
+            fail(rename, e, listener);
+        }
+    }
+
+    private void moveToTarget(Rename rename, Listener listener) {
+        try {
+            move(rename.path, rename.target);
+            rename.path = rename.target;
+            LOGGER.debug("Renamed {} in {}", rename.source, rename.target);
+            listener.renamed(rename);
+        } catch (IOException e) {
+            // The file is moved back from its temporary name once the second
+            // phase is done (see moveBack), another file may be moving to its
+            // source meanwhile
+            fail(rename, e, listener);
+        }
+    }
+
+    /**
+     * Give back their source name to the files whose rename failed after they
+     * were moved to a temporary name. Called once all the moves are done, so
+     * that no other move of the set can target their source at the same
+     * time. A file whose source has been taken stays at its temporary name.
+     */
+    private static void moveBack(List<Rename> renames) {
+        for (Rename rename : renames) {
+            if (rename.error != null && !rename.path.equals(rename.source)) {
+                try {
+                    move(rename.path, rename.source);
+                    rename.path = rename.source;
+                } catch (IOException e) {
+                    LOGGER.error("Can't move back {} in {}", rename.path, rename.source, e);
+                }
+            }
+        }
+    }
+
+    private void fail(Rename rename, IOException e, Listener listener) {
+        LOGGER.error("Can't rename {} in {}", rename.source, rename.target, e);
+        rename.error = e;
+        listener.renamed(rename);
+    }
+
+    /**
+     * Find the files left at their temporary name by an interrupted run.
+     *
+     * @param directory
+     *            directory of the renamed files
+     * @return the temporary path of the files, by their path before the rename
+     * @throws IOException
+     */
+    public static Map<Path, Path> findTemporaries(Path directory) throws IOException {
+        Map<Path, Path> temporaries = new HashMap<Path, Path>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                Matcher matcher = TEMPORARY_NAME.matcher(entry.getFileName().toString());
+                if (matcher.matches()) {
+                    temporaries.put(directory.resolve(matcher.group(1)), entry);
+                }
+            }
+        }
+        return temporaries;
+    }
+
+    /**
+     * Move a file, atomically if the file system supports it, never replacing
+     * an existing file.
+     */
+    private static void move(Path source, Path target) throws IOException {
+        // An atomic move replaces an existing target on some platforms
+        if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+            throw new FileAlreadyExistsException(target.toString());
+        }
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target);
+        }
+    }
+
+}
@@ -0,0 +1,377 @@
+package fr.kysic.imgreorder;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Write-ahead journal of an Apply, stored in the applied directory.<br>
+ * The journal starts with the whole plan (the files to delete and the renames,
+ * by name), then records the progress: a marker when the deletes are done, a
+ * marker when the first rename phase is done, the index of each done rename
+ * and a commit marker at the end. The plan and the markers are synced to the
+ * disk when written, the done renames only by batches: the recovery checks
+ * the files themselves for the renames not recorded yet.<br>
+ * One record per line, fields separated by tabulations (escaped in the
+ * names).
+ */
+public class RenameJournal implements Closeable {
+
+    /**
+     * Name of the journal file in the applied directory.
+     */
+    public static final String JOURNAL_FILE = ".imgreorder.journal";
+
+    private static final String DELETE = "D";
+    private static final String RENAME = "R";
+    private static final String PLANNED = "PLANNED";
+    private static final String DELETES_DONE = "DELETED";
+    private static final String FIRST_PHASE_DONE = "PHASE2";
+    private static final String RENAMED = "M";
+    private static final String COMMIT = "COMMIT";
+
+    /**
+     * Number of done renames written between two syncs.
+     */
+    private static final int SYNC_BATCH = 1024;
+
+    /**
+     * Content of a journal read back.
+     */
+    public static class Content {
+
+        private final List<String> deletes = new ArrayList<String>();
+
+        private final List<String[]> renames = new ArrayList<String[]>();
+
+        private final BitSet renamed = new BitSet();
+
+        private boolean planned;
+
+        private boolean deletesDone;
+
+        private boolean firstPhaseDone;
+
+        private boolean committed;
+
+        /**
+         * @return the names of the files to delete
+         */
+        public List<String> getDeletes() {
+            return deletes;
+        }
+
+        /**
+         * @return the renames, as {source name, target name}
+         */
+        public List<String[]> getRenames() {
+            return renames;
+        }
+
+        /**
+         * @param index
+         *            index of a rename
+         * @return true if the rename is recorded as done
+         */
+        public boolean isRenamed(int index) {
+            return renamed.get(index);
+        }
+
+        /**
+         * @return true if the whole plan has been written
+         */
+        public boolean isPlanned() {
+            return planned;
+        }
+
+        /**
+         * @return true if the deletes are done
+         */
+        public boolean isDeletesDone() {
+            return deletesDone;
+        }
+
+        /**
+         * @return true if all the files in the way of other renames have been
+         *         moved to their temporary name
+         */
+        public boolean isFirstPhaseDone() {
+            return firstPhaseDone;
+        }
+
+        /**
+         * @return true if the Apply completed
+         */
+        public boolean isCommitted() {
+            return committed;
+        }
+
+    }
+
+    private final FileChannel channel;
+
+    private final Writer writer;
+
+    private int unsyncedCount;
+
+    private RenameJournal(Path journalFile, StandardOpenOption mode) throws IOException {
+        channel = FileChannel.open(journalFile, StandardOpenOption.CREATE, mode, StandardOpenOption.WRITE);
+        writer = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param directory
+     *            an applied directory
+     * @return the journal file of the directory
+     */
+    public static Path getJournalFile(Path directory) {
+        return directory.resolve(JOURNAL_FILE);
+    }
+
+    /**
+     * Create the journal of an Apply and write its plan. The plan is written
+     * aside and then replaces the previous journal at once, so a crash never
+     * leaves a directory without a complete journal.
+     *
+     * @param directory
+     *            the applied directory
+     * @param deletes
+     *            the names of the files to delete
+     * @param renames
+     *            the renames, as {source name, target name}
+     * @return the journal, opened for the progress records
+     * @throws IOException
+     */
+    public static RenameJournal create(Path directory, List<String> deletes, List<String[]> renames)
+            throws IOException {
+        Path journalFile = getJournalFile(directory);
+        Path planFile = journalFile.resolveSibling(JOURNAL_FILE + ".new");
+        try (RenameJournal plan = new RenameJournal(planFile, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (String delete : deletes) {
+                plan.write(DELETE, escape(delete));
+            }
+            for (String[] rename : renames) {
+                plan.write(RENAME, escape(rename[0]), escape(rename[1]));
+            }
+            plan.write(PLANNED);
+            plan.sync();
+        }
+        try {
+            Files.move(planFile, journalFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(planFile, journalFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return new RenameJournal(journalFile, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Open the existing journal of a directory to record more progress, e.g.
+     * the completion of an interrupted Apply.
+     *
+     * @param directory
+     *            the applied directory
+     * @return the journal, opened for the progress records
+     * @throws IOException
+     */
+    public static RenameJournal open(Path directory) throws IOException {
+        Path journalFile = getJournalFile(directory);
+        try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.WRITE,
+                StandardOpenOption.READ)) {
+            // Drop the last line partially written by a crash: ending it
+            // could make a valid record of a truncated one
+            channel.truncate(getCompleteLength(channel));
+            channel.force(false);
+        }
+        return new RenameJournal(journalFile, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * @return the length of the journal up to the end of its last complete
+     *         line
+     */
+    private static long getCompleteLength(FileChannel channel) throws IOException {
+        ByteBuffer block = ByteBuffer.allocate(4096);
+        long end = channel.size();
+        while (end > 0) {
+            long start = Math.max(0, end - block.capacity());
+            block.clear().limit((int) (end - start));
+            while (block.hasRemaining() && channel.read(block, start + block.position()) != -1) {
+                // Read the whole block
+            }
+            for (int i = block.position() - 1; i >= 0; i--) {
+                if (block.get(i) == '\n') {
+                    return start + i + 1;
+                }
+            }
+            end = start;
+        }
+        return 0;
+    }
+
+    /**
+     * Read the journal of a directory.
+     *
+     * @param directory
+     *            a directory
+     * @return the journal content, null if the directory has no journal
+     * @throws IOException
+     */
+    public static Content read(Path directory) throws IOException {
+        Content content = new Content();
+        ByteBuffer data;
+        try (FileChannel channel = FileChannel.open(getJournalFile(directory), StandardOpenOption.READ)) {
+            // A last line without its end was partially written by a crash
+            data = ByteBuffer.allocate((int) getCompleteLength(channel));
+            while (data.hasRemaining() && channel.read(data) != -1) {
+                // Read the complete lines
+            }
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        data.flip();
+        BufferedReader reader = new BufferedReader(new StringReader(StandardCharsets.UTF_8.decode(data).toString()));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] fields = line.split("\t", -1);
+            try {
+                switch (fields[0]) {
+                case DELETE:
+                    content.deletes.add(unescape(fields[1]));
+                    break;
+                case RENAME:
+                    content.renames.add(new String[] { unescape(fields[1]), unescape(fields[2]) });
+                    break;
+                case PLANNED:
+                    content.planned = true;
+                    break;
+                case DELETES_DONE:
+                    content.deletesDone = true;
+                    break;
+                case FIRST_PHASE_DONE:
+                    content.firstPhaseDone = true;
+                    break;
+                case RENAMED:
+                    content.renamed.set(Integer.parseInt(fields[1]));
+                    break;
+                case COMMIT:
+                    content.committed = true;
+                    break;
+                default:
+                    // Malformed line (e.g. ended by a previous recovery), the
+                    // next records are still read
+                    break;
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                // Malformed line, skipped too
+            }
+        }
+        return content;
+    }
+
+    /**
+     * Remove the journal of a directory.
+     *
+     * @param directory
+     *            a directory
+     * @throws IOException
+     */
+    public static void delete(Path directory) throws IOException {
+        Files.deleteIfExists(getJournalFile(directory));
+    }
+
+    /**
+     * Record that the deletes are done.
+     *
+     * @throws IOException
+     */
+    public synchronized void deletesDone() throws IOException {
+        write(DELETES_DONE);
+        sync();
+    }
+
+    /**
+     * Record that the first rename phase is done.
+     *
+     * @throws IOException
+     */
+    public synchronized void firstPhaseDone() throws IOException {
+        write(FIRST_PHASE_DONE);
+        sync();
+    }
+
+    /**
+     * Record a done rename, synced with the next batch.
+     *
+     * @param index
+     *            index of the rename in the plan
+     * @throws IOException
+     */
+    public synchronized void renamed(int index) throws IOException {
+        write(RENAMED, Integer.toString(index));
+        if (++unsyncedCount >= SYNC_BATCH) {
+            sync();
+        }
+    }
+
+    /**
+     * Record the end of the Apply.
+     *
+     * @throws IOException
+     */
+    public synchronized void commit() throws IOException {
+        write(COMMIT);
+        sync();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+
+    private void write(String... fields) throws IOException {
+        writer.write(String.join("\t", fields));
+        writer.write('\n');
+    }
+
+    private void sync() throws IOException {
+        writer.flush();
+        channel.force(false);
+        unsyncedCount = 0;
+    }
+
+    private static String escape(String name) {
+        return name.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String field) {
+        StringBuilder name = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '\\' && i + 1 < field.length()) {
+                char next = field.charAt(++i);
+                name.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                name.append(c);
+            }
+        }
+        return name.toString();
+    }
+
+}
@@ -0,0 +1,192 @@
+package fr.kysic.imgreorder;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compute the new names of the images so that their name order is the wanted
+ * order.<br>
+ * A new name is the name without its order prefix (the "xxxx_" digits) with a
+ * new prefix. Prefixes have all the same number of digits (the alphanum order
+ * sorts shorter numbers first, whatever their leading zeros).<br>
+ * In the minimal mode, the longest sequence of images whose current prefixes
+ * are already in the wanted order, with enough free values between them for
+ * the images displaced between them, keeps its names. Only the other images
+ * are renamed, with prefixes evenly spread in the free values, so that the
+ * gaps left let later moves rename few images too.
+ */
+public class RenamePlanner {
+
+    private static final int MIN_PREFIX_DIGITS = 4;
+
+    private static final Pattern PREFIX = Pattern.compile("^([0-9]+)_");
+
+    private final boolean minimal;
+
+    /**
+     * @param minimal
+     *            true to rename as few images as possible, false to number
+     *            all the images from 0
+     */
+    public RenamePlanner(boolean minimal) {
+        this.minimal = minimal;
+    }
+
+    /**
+     * @param names
+     *            the image file names, in the wanted order
+     * @return the new names of the images, in the same order (a name is
+     *         returned unchanged if the image doesn't have to be renamed)
+     */
+    public List<String> plan(List<String> names) {
+        int n = names.size();
+        List<String> newNames = new ArrayList<String>(n);
+        if (!minimal) {
+            for (int i = 0; i < n; i++) {
+                newNames.add(String.format("%04d_", i) + PREFIX.matcher(names.get(i)).replaceFirst(""));
+            }
+            return newNames;
+        }
+        int digits = getPrefixDigits(n);
+        long maxValue = pow10(digits) - 1;
+        long[] prefixes = new long[n];
+        for (int i = 0; i < n; i++) {
+            prefixes[i] = getPrefix(names.get(i), digits);
+        }
+        boolean[] kept = getKept(prefixes, maxValue);
+        // Spread the displaced images between the kept ones
+        int previous = -1;
+        for (int i = 0; i <= n; i++) {
+            if (i < n && !kept[i]) {
+                continue;
+            }
+            long low = previous == -1 ? -1 : prefixes[previous];
+            long high = i == n ? maxValue + 1 : prefixes[i];
+            int count = i - previous - 1;
+            for (int k = 1; k <= count; k++) {
+                prefixes[previous + k] = low + (high - low) * k / (count + 1);
+            }
+            previous = i;
+        }
+        for (int i = 0; i < n; i++) {
+            newNames.add(kept[i] ? names.get(i) : rename(names.get(i), prefixes[i], digits));
+        }
+        return newNames;
+    }
+
+    /**
+     * @param directory
+     *            the directory of the images
+     * @param images
+     *            the image files, in the wanted order
+     * @return the renames of the images, in the same order (the source and
+     *         the target of a rename are the same if the image keeps its name)
+     */
+    public List<RenameEngine.Rename> planRenames(Path directory, List<Path> images) {
+        List<String> names = new ArrayList<String>(images.size());
+        for (Path image : images) {
+            names.add(image.getFileName().toString());
+        }
+        List<String> newNames = plan(names);
+        List<RenameEngine.Rename> renames = new ArrayList<RenameEngine.Rename>(images.size());
+        for (int i = 0; i < images.size(); i++) {
+            renames.add(new RenameEngine.Rename(images.get(i), directory.resolve(newNames.get(i))));
+        }
+        return renames;
+    }
+
+    /**
+     * Find the images keeping their prefix.<br>
+     * Images i &lt; j can both keep their prefix if there are enough values
+     * between them for the images between them: p[j] - p[i] &gt;= j - i, i.e.
+     * p[i] - i &lt;= p[j] - j. So the kept images are a longest non
+     * decreasing subsequence of p[i] - i, among the images with room for the
+     * images before and after them.
+     *
+     * @param prefixes
+     *            the current prefixes (-1 for none)
+     * @param maxValue
+     *            the maximal prefix value
+     * @return the images keeping their prefix
+     */
+    private boolean[] getKept(long[] prefixes, long maxValue) {
+        int n = prefixes.length;
+        // tails[l]: index of the smallest last key of a subsequence of
+        // length l + 1
+        int[] tails = new int[n];
+        int[] predecessors = new int[n];
+        long[] tailKeys = new long[n];
+        int length = 0;
+        for (int i = 0; i < n; i++) {
+            long key = prefixes[i] - i;
+            if (prefixes[i] < 0 || key < 0 || prefixes[i] + (n - 1 - i) > maxValue) {
+                continue;
+            }
+            // First tail greater than the key (non decreasing subsequence)
+            int position = upperBound(tailKeys, length, key);
+            predecessors[i] = position > 0 ? tails[position - 1] : -1;
+            tails[position] = i;
+            tailKeys[position] = key;
+            if (position == length) {
+                length++;
+            }
+        }
+        boolean[] kept = new boolean[n];
+        for (int i = length > 0 ? tails[length - 1] : -1; i != -1; i = predecessors[i]) {
+            kept[i] = true;
+        }
+        return kept;
+    }
+
+    private static int upperBound(long[] keys, int length, long key) {
+        int low = 0;
+        int high = length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (keys[middle] <= key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @param n
+     *            number of images
+     * @return the number of digits of the prefixes, with room for twice the
+     *         number of images
+     */
+    private static int getPrefixDigits(int n) {
+        return Math.max(MIN_PREFIX_DIGITS, Long.toString(2L * n).length());
+    }
+
+    private static long pow10(int digits) {
+        long value = 1;
+        for (int i = 0; i < digits; i++) {
+            value *= 10;
+        }
+        return value;
+    }
+
+    /**
+     * @return the prefix value of the name, -1 if it has no prefix of the
+     *         given number of digits
+     */
+    private static long getPrefix(String name, int digits) {
+        Matcher matcher = PREFIX.matcher(name);
+        if (!matcher.find() || matcher.group(1).length() != digits) {
+            return -1;
+        }
+        return Long.parseLong(matcher.group(1));
+    }
+
+    private static String rename(String name, long prefix, int digits) {
+        return String.format("%0" + digits + "d_", prefix) + PREFIX.matcher(name).replaceFirst("");
+    }
+
+}
@@ -0,0 +1,599 @@
+package fr.kysic.imgreorder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Apply the deletes and the renames of a directory, journaled with a
+ * {@link RenameJournal}.<br>
+ * An Apply interrupted by a crash is completed (rolled forward) by
+ * {@link #recover(Path)}, from the journal and the files found in the
+ * directory. The renames of the last completed Apply can be reverted by
+ * {@link #undo(Path)} (deleted files can't be restored).<br>
+ * Deletes are run in parallel, as the renames of each phase. Several
+ * directories can be applied (or undone) in parallel, each with its own
+ * journal.
+ */
+public class ReorderApplier {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReorderApplier.class);
+
+    /**
+     * Follow the progress of an Apply.
+     */
+    public interface Progress {
+
+        /**
+         * Called (from a worker thread) each time a delete or a rename is
+         * done or failed.
+         *
+         * @param done
+         *            number of deletes and renames done or failed
+         * @param total
+         *            number of deletes and renames to do
+         */
+        void progress(int done, int total);
+
+    }
+
+    /**
+     * Result of an Apply.
+     */
+    public static class Result {
+
+        private final Map<Path, IOException> deleteErrors = Collections
+                .synchronizedMap(new LinkedHashMap<Path, IOException>());
+
+        private final Map<Path, IOException> directoryErrors = new LinkedHashMap<Path, IOException>();
+
+        private final List<RenameEngine.Rename> renames;
+
+        private int renameFailures;
+
+        private long deleteNanos;
+
+        private long renameNanos;
+
+        private Result(List<RenameEngine.Rename> renames) {
+            this.renames = renames;
+        }
+
+        /**
+         * @return the files which couldn't be deleted, with the error
+         */
+        public Map<Path, IOException> getDeleteErrors() {
+            return deleteErrors;
+        }
+
+        /**
+         * @return the directories which couldn't be applied (their journal
+         *         couldn't be written), with the error
+         */
+        public Map<Path, IOException> getDirectoryErrors() {
+            return directoryErrors;
+        }
+
+        /**
+         * @return the applied renames, with their result
+         */
+        public List<RenameEngine.Rename> getRenames() {
+            return renames;
+        }
+
+        /**
+         * @return the number of renames which failed (see
+         *         {@link RenameEngine.Rename#getError()})
+         */
+        public int getRenameFailures() {
+            return renameFailures;
+        }
+
+        /**
+         * @return the duration of the deletes in ns (summed over the
+         *         directories), 0 if there was none
+         */
+        public long getDeleteNanos() {
+            return deleteNanos;
+        }
+
+        /**
+         * @return the duration of the renames in ns (summed over the
+         *         directories), 0 if there was none
+         */
+        public long getRenameNanos() {
+            return renameNanos;
+        }
+
+    }
+
+    /**
+     * An Apply or an undo of a directory.
+     */
+    private interface DirectoryOperation {
+
+        Result run(Path directory, Progress progress) throws IOException, InterruptedException;
+
+    }
+
+    /**
+     * Progress of the operation of a directory.
+     */
+    private interface DirectoryProgress {
+
+        void progress(Path directory, int done, int total);
+
+    }
+
+    private final RenameEngine renameEngine;
+
+    private final int nbDeleteThreads;
+
+    /**
+     * @param renameEngine
+     *            engine applying the renames
+     * @param nbDeleteThreads
+     *            number of deletes run in parallel
+     */
+    public ReorderApplier(RenameEngine renameEngine, int nbDeleteThreads) {
+        this.renameEngine = renameEngine;
+        this.nbDeleteThreads = nbDeleteThreads;
+    }
+
+    /**
+     * Delete files then rename files of a directory. The result of each
+     * rename is set in it.
+     *
+     * @param directory
+     *            the directory
+     * @param deletes
+     *            the files to delete
+     * @param renames
+     *            the renames, in the directory
+     * @return the failures
+     * @throws IOException
+     *             if the journal can't be written, nothing is done if it
+     *             can't be created
+     * @throws InterruptedException
+     */
+    public Result apply(Path directory, List<Path> deletes, List<RenameEngine.Rename> renames)
+            throws IOException, InterruptedException {
+        return apply(directory, deletes, renames, (done, total) -> {
+            // Nothing
+        });
+    }
+
+    /**
+     * Delete files then rename files of a directory. The result of each
+     * rename is set in it.
+     *
+     * @param directory
+     *            the directory
+     * @param deletes
+     *            the files to delete
+     * @param renames
+     *            the renames, in the directory
+     * @param progress
+     *            follows the progress of the Apply
+     * @return the failures
+     * @throws IOException
+     *             if the journal can't be written, nothing is done if it
+     *             can't be created
+     * @throws InterruptedException
+     */
+    public Result apply(Path directory, List<Path> deletes, List<RenameEngine.Rename> renames, Progress progress)
+            throws IOException, InterruptedException {
+        List<String> deleteNames = new ArrayList<String>(deletes.size());
+        for (Path delete : deletes) {
+            deleteNames.add(directory.relativize(delete).toString());
+        }
+        List<RenameEngine.Rename> moves = new ArrayList<RenameEngine.Rename>();
+        List<String[]> renameNames = new ArrayList<String[]>();
+        Map<RenameEngine.Rename, Integer> indexes = new IdentityHashMap<RenameEngine.Rename, Integer>();
+        for (RenameEngine.Rename rename : renames) {
+            if (!rename.getSource().equals(rename.getTarget())) {
+                indexes.put(rename, moves.size());
+                moves.add(rename);
+                renameNames.add(new String[] { directory.relativize(rename.getSource()).toString(),
+                        directory.relativize(rename.getTarget()).toString() });
+            }
+        }
+        try (RenameJournal journal = RenameJournal.create(directory, deleteNames, renameNames)) {
+            return run(journal, deletes, moves, indexes, renames, progress);
+        }
+    }
+
+    /**
+     * Delete files then rename files, recording the progress in the journal.
+     *
+     * @param indexes
+     *            index in the journal plan of each move
+     * @param renames
+     *            all the renames, in the result
+     */
+    private Result run(RenameJournal journal, List<Path> deletes, List<RenameEngine.Rename> moves,
+            Map<RenameEngine.Rename, Integer> indexes, List<RenameEngine.Rename> renames, Progress progress)
+            throws IOException, InterruptedException {
+        Result result = new Result(renames);
+        int total = deletes.size() + moves.size();
+        AtomicInteger done = new AtomicInteger();
+        try {
+            long start = System.nanoTime();
+            deleteAll(deletes, result, () -> progress.progress(done.incrementAndGet(), total));
+            journal.deletesDone();
+            if (!deletes.isEmpty()) {
+                result.deleteNanos = System.nanoTime() - start;
+            }
+            start = System.nanoTime();
+            result.renameFailures = renameEngine.apply(moves, new RenameEngine.Listener() {
+
+                @Override
+                public void firstPhaseDone() {
+                    try {
+                        journal.firstPhaseDone();
+                    } catch (IOException e) {
+                        // Files must not be moved to their new name if the
+                        // recovery can't know the first phase is done
+                        throw new UncheckedIOException(e);
+                    }
+                }
+
+                @Override
+                public void renamed(RenameEngine.Rename rename) {
+                    progress.progress(done.incrementAndGet(), total);
+                    if (rename.isDone()) {
+                        try {
+                            journal.renamed(indexes.get(rename));
+                        } catch (IOException e) {
+                            // The recovery checks the files themselves
+                            LOGGER.error("Unable to journal the rename of {}", rename.getSource(), e);
+                        }
+                    }
+                }
+
+            });
+            journal.commit();
+            if (!moves.isEmpty()) {
+                result.renameNanos = System.nanoTime() - start;
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return result;
+    }
+
+    private void deleteAll(List<Path> deletes, Result result, Runnable deleted) throws InterruptedException {
+        if (deletes.isEmpty()) {
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(nbDeleteThreads, deletes.size()));
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>(deletes.size());
+            for (Path delete : deletes) {
+                futures.add(executor.submit(() -> {
+                    try {
+                        LOGGER.info("Delete : {}", delete);
+                        Files.delete(delete);
+                    } catch (NoSuchFileException e) {
+                        // Already deleted
+                    } catch (IOException e) {
+                        LOGGER.error("Can't delete {}", delete, e);
+                        result.deleteErrors.put(delete, e);
+                    }
+                    deleted.run();
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    LOGGER.error("Unexpected delete failure", e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * @param journal
+     *            the journal of the interrupted Apply
+     * @param index
+     *            index of the rename whose target is the source
+     * @param source
+     *            source of a rename in the way of another one
+     * @return true if the file at the source was moved away: the source is
+     *         free, or the rename to the source is done (a move never
+     *         replaces an existing file)
+     */
+    private static boolean isMovedAway(RenameJournal.Content journal, int index, Path source) {
+        return !Files.exists(source, LinkOption.NOFOLLOW_LINKS) || journal.isRenamed(index);
+    }
+
+    /**
+     * Complete the Apply of a directory interrupted by a crash, if any.
+     *
+     * @param directory
+     *            the directory
+     * @return the result of the completion, null if there was nothing to
+     *         complete
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public Result recover(Path directory) throws IOException, InterruptedException {
+        RenameJournal.Content journal = RenameJournal.read(directory);
+        if (journal == null || journal.isCommitted()) {
+            return null;
+        }
+        if (!journal.isPlanned()) {
+            // Nothing done before the plan is complete
+            RenameJournal.delete(directory);
+            return null;
+        }
+        LOGGER.warn("Completing the interrupted Apply of {}", directory);
+        List<Path> deletes = new ArrayList<Path>();
+        if (!journal.isDeletesDone()) {
+            for (String delete : journal.getDeletes()) {
+                deletes.add(directory.resolve(delete));
+            }
+        }
+        // The journal is completed (with the indexes of its plan), so that an
+        // interrupted recovery is recovered the same way and the undo knows
+        // all the renames
+        Map<String, Integer> targets = new HashMap<String, Integer>();
+        for (int i = 0; i < journal.getRenames().size(); i++) {
+            targets.put(journal.getRenames().get(i)[1], i);
+        }
+        Map<Path, Path> temporaries = RenameEngine.findTemporaries(directory);
+        List<RenameEngine.Rename> remaining = new ArrayList<RenameEngine.Rename>();
+        Map<RenameEngine.Rename, Integer> indexes = new IdentityHashMap<RenameEngine.Rename, Integer>();
+        // Renames done before the crash but not recorded yet
+        List<Integer> unrecorded = new ArrayList<Integer>();
+        for (int i = 0; i < journal.getRenames().size(); i++) {
+            String[] rename = journal.getRenames().get(i);
+            Path source = directory.resolve(rename[0]);
+            Path target = directory.resolve(rename[1]);
+            Path temporary = temporaries.get(source);
+            RenameEngine.Rename move = null;
+            if (temporary != null) {
+                move = new RenameEngine.Rename(temporary, target);
+            } else if (journal.isRenamed(i)) {
+                continue;
+            } else if (targets.containsKey(rename[0])) {
+                // In the way of another rename: the file was moved during the
+                // first phase, so it is still at its source if the first phase
+                // wasn't done
+                if (!journal.isFirstPhaseDone()) {
+                    move = new RenameEngine.Rename(source, target);
+                } else if (isMovedAway(journal, targets.get(rename[0]), source) && Files.exists(target)) {
+                    unrecorded.add(i);
+                } else {
+                    // Its move in the first phase may have failed: the file at
+                    // its source may be the original one, it is left as is
+                    LOGGER.warn("Can't tell if {} was renamed to {}, it is left as is", source, target);
+                }
+            } else if (Files.exists(source)) {
+                move = new RenameEngine.Rename(source, target);
+            } else if (Files.exists(target)) {
+                unrecorded.add(i);
+            }
+            if (move != null) {
+                indexes.put(move, i);
+                remaining.add(move);
+            }
+        }
+        try (RenameJournal completion = RenameJournal.open(directory)) {
+            for (int index : unrecorded) {
+                completion.renamed(index);
+            }
+            return run(completion, deletes, remaining, indexes, remaining, (done, total) -> {
+                // Nothing
+            });
+        }
+    }
+
+    /**
+     * @param directory
+     *            a directory
+     * @return true if the renames of the last Apply of the directory can be
+     *         reverted
+     * @throws IOException
+     */
+    public boolean canUndo(Path directory) throws IOException {
+        RenameJournal.Content journal = RenameJournal.read(directory);
+        return journal != null && journal.isCommitted();
+    }
+
+    /**
+     * Revert the renames of the last Apply of a directory. The undo is itself
+     * journaled (so it is completed by {@link #recover(Path)} if it is
+     * interrupted) and can't be undone.
+     *
+     * @param directory
+     *            the directory
+     * @return the result of the undo, null if there is nothing to undo
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public Result undo(Path directory) throws IOException, InterruptedException {
+        return undo(directory, (done, total) -> {
+            // Nothing
+        });
+    }
+
+    /**
+     * Revert the renames of the last Apply of a directory. The undo is itself
+     * journaled (so it is completed by {@link #recover(Path)} if it is
+     * interrupted) and can't be undone.
+     *
+     * @param directory
+     *            the directory
+     * @param progress
+     *            follows the progress of the undo
+     * @return the result of the undo, null if there is nothing to undo
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public Result undo(Path directory, Progress progress) throws IOException, InterruptedException {
+        RenameJournal.Content journal = RenameJournal.read(directory);
+        if (journal == null || !journal.isCommitted()) {
+            return null;
+        }
+        if (!journal.getDeletes().isEmpty()) {
+            LOGGER.warn("The {} files deleted by the last Apply of {} can't be restored", journal.getDeletes().size(),
+                    directory);
+        }
+        List<RenameEngine.Rename> reverse = new ArrayList<RenameEngine.Rename>();
+        for (int i = 0; i < journal.getRenames().size(); i++) {
+            if (journal.isRenamed(i)) {
+                String[] rename = journal.getRenames().get(i);
+                reverse.add(new RenameEngine.Rename(directory.resolve(rename[1]), directory.resolve(rename[0])));
+            }
+        }
+        Result result = apply(directory, Collections.<Path> emptyList(), reverse, progress);
+        RenameJournal.delete(directory);
+        return result;
+    }
+
+    /**
+     * Delete files then rename files of several directories, each directory
+     * being applied as by {@link #apply(Path, List, List, Progress)}, several
+     * directories in parallel. A directory which can't be applied doesn't stop
+     * the others.
+     *
+     * @param deletes
+     *            the files to delete, by directory
+     * @param renames
+     *            the renames, by directory
+     * @param nbDirectoryThreads
+     *            number of directories applied in parallel
+     * @param progress
+     *            follows the progress of the Apply of all the directories
+     * @return the failures of all the directories
+     * @throws IllegalArgumentException
+     *             if two directories are the same directory
+     * @throws InterruptedException
+     */
+    public Result applyAll(Map<Path, List<Path>> deletes, Map<Path, List<RenameEngine.Rename>> renames,
+            int nbDirectoryThreads, Progress progress) throws InterruptedException {
+        Set<Path> directories = new LinkedHashSet<Path>(renames.keySet());
+        directories.addAll(deletes.keySet());
+        int total = 0;
+        for (Path directory : directories) {
+            total += deletes.getOrDefault(directory, Collections.<Path> emptyList()).size();
+            for (RenameEngine.Rename rename : renames.getOrDefault(directory,
+                    Collections.<RenameEngine.Rename> emptyList())) {
+                if (!rename.getSource().equals(rename.getTarget())) {
+                    total++;
+                }
+            }
+        }
+        int allTotal = total;
+        AtomicInteger allDone = new AtomicInteger();
+        return runAll(directories, nbDirectoryThreads,
+                (directory, directoryProgress) -> apply(directory,
+                        deletes.getOrDefault(directory, Collections.<Path> emptyList()),
+                        renames.getOrDefault(directory, Collections.<RenameEngine.Rename> emptyList()),
+                        directoryProgress),
+                (directory, done, directoryTotal) -> progress.progress(allDone.incrementAndGet(), allTotal));
+    }
+
+    /**
+     * Revert the renames of the last Apply of several directories, as by
+     * {@link #undo(Path, Progress)}, several directories in parallel.
+     *
+     * @param directories
+     *            the directories
+     * @param nbDirectoryThreads
+     *            number of directories undone in parallel
+     * @param progress
+     *            follows the progress of the undo, by directory
+     * @return the result of the undo of all the directories
+     * @throws IllegalArgumentException
+     *             if two directories are the same directory
+     * @throws InterruptedException
+     */
+    public Result undoAll(Collection<Path> directories, int nbDirectoryThreads, Progress progress)
+            throws InterruptedException {
+        Map<Path, int[]> directoryProgress = new HashMap<Path, int[]>();
+        return runAll(directories, nbDirectoryThreads, this::undo, (directory, done, total) -> {
+            int doneSum = 0;
+            int totalSum = 0;
+            synchronized (directoryProgress) {
+                directoryProgress.put(directory, new int[] { done, total });
+                for (int[] counts : directoryProgress.values()) {
+                    doneSum += counts[0];
+                    totalSum += counts[1];
+                }
+            }
+            // The directories not started yet count as one rename to do
+            progress.progress(doneSum, totalSum + directories.size() - directoryProgress.size());
+        });
+    }
+
+    private Result runAll(Collection<Path> directories, int nbDirectoryThreads, DirectoryOperation operation,
+            DirectoryProgress progress) throws InterruptedException {
+        // Two Apply of the same directory would replace each other's journal
+        Set<Path> normalized = new HashSet<Path>();
+        for (Path directory : directories) {
+            if (!normalized.add(directory.toAbsolutePath().normalize())) {
+                throw new IllegalArgumentException(directory + " is listed twice");
+            }
+        }
+        List<RenameEngine.Rename> allRenames = new ArrayList<RenameEngine.Rename>();
+        Result allResult = new Result(allRenames);
+        if (directories.isEmpty()) {
+            return allResult;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(nbDirectoryThreads, directories.size()));
+        try {
+            Map<Path, Future<Result>> futures = new LinkedHashMap<Path, Future<Result>>();
+            for (Path directory : directories) {
+                futures.put(directory, executor.submit(() -> operation.run(directory,
+                        (done, total) -> progress.progress(directory, done, total))));
+            }
+            for (Map.Entry<Path, Future<Result>> future : futures.entrySet()) {
+                try {
+                    Result result = future.getValue().get();
+                    if (result != null) {
+                        allRenames.addAll(result.getRenames());
+                        allResult.deleteErrors.putAll(result.getDeleteErrors());
+                        allResult.renameFailures += result.getRenameFailures();
+                        allResult.deleteNanos += result.getDeleteNanos();
+                        allResult.renameNanos += result.getRenameNanos();
+                    }
+                } catch (ExecutionException e) {
+                    LOGGER.error("Unable to apply the changes in {}", future.getKey(), e.getCause());
+                    allResult.directoryErrors.put(future.getKey(), e.getCause() instanceof IOException
+                            ? (IOException) e.getCause() : new IOException(e.getCause()));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return allResult;
+    }
+
+}
@@ -0,0 +1,266 @@
+package fr.kysic.imgreorder;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ImagingOpException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.stream.ImageInputStream;
+
+import org.imgscalr.Scalr;
+
+/**
+ * Decode image files directly at a reduced resolution to build previews.<br>
+ * The image header is read first to get the image dimensions, then the image
+ * is decoded with a source subsampling so that only about twice the requested
+ * size is ever allocated, before the final resize.<br>
+ * For JPEG files, the thumbnail embedded in the EXIF data is used instead when
+ * there is one with the right aspect ratio.<br>
+ * When run by a {@link PreviewExecutor} task which gets cancelled, the decode
+ * is aborted and an {@link InterruptedIOException} is thrown.<br>
+ * Files are read through a {@link MappedImageInputStream}.
+ */
+public class ThumbnailDecoder {
+
+    /**
+     * The subsampled image is kept at least this factor bigger than the
+     * requested size so that the final resize still has pixels to smooth.
+     */
+    private static final int OVERSAMPLING = 2;
+
+    private static final IIOReadProgressListener CANCELLATION_LISTENER = new CancellationListener();
+
+    private final ExifThumbnailReader exifThumbnailReader = new ExifThumbnailReader();
+
+    /**
+     * Create a decoder, registering the {@link MappedImageInputStreamSpi} if
+     * needed.
+     */
+    public ThumbnailDecoder() {
+        MappedImageInputStreamSpi.register();
+    }
+
+    /**
+     * Abort the decode when the preview task running it is cancelled.
+     */
+    private static class CancellationListener implements IIOReadProgressListener {
+
+        @Override
+        public void imageProgress(ImageReader source, float percentageDone) {
+            if (PreviewExecutor.isCurrentTaskCancelled()) {
+                source.abort();
+            }
+        }
+
+        @Override
+        public void imageStarted(ImageReader source, int imageIndex) {
+            // Nothing
+        }
+
+        @Override
+        public void imageComplete(ImageReader source) {
+            // Nothing
+        }
+
+        @Override
+        public void readAborted(ImageReader source) {
+            // Nothing
+        }
+
+        @Override
+        public void sequenceStarted(ImageReader source, int minIndex) {
+            // Nothing
+        }
+
+        @Override
+        public void sequenceComplete(ImageReader source) {
+            // Nothing
+        }
+
+        @Override
+        public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) {
+            // Nothing
+        }
+
+        @Override
+        public void thumbnailProgress(ImageReader source, float percentageDone) {
+            // Nothing
+        }
+
+        @Override
+        public void thumbnailComplete(ImageReader source) {
+            // Nothing
+        }
+
+    }
+
+    /**
+     * Decode the image and resize it to fit in the given size.
+     *
+     * @param imgFile
+     *            the image file to decode
+     * @param w
+     *            desired width
+     * @param h
+     *            desired height
+     * @return the resized image
+     * @throws IOException
+     *             if the file can't be read or no reader handles its format
+     * @throws ImagingOpException
+     * @throws IllegalArgumentException
+     */
+    public BufferedImage decode(File imgFile, int w, int h) throws IOException, ImagingOpException,
+            IllegalArgumentException {
+        if (PreviewExecutor.isCurrentTaskCancelled()) {
+            throw new InterruptedIOException("Decode cancelled");
+        }
+        try (ImageInputStream input = ImageIO.createImageInputStream(imgFile)) {
+            if (input == null) {
+                throw new IOException("Can't open " + imgFile);
+            }
+            if (isJpegFile(imgFile)) {
+                BufferedImage thumbnail = exifThumbnailReader.read(input);
+                if (thumbnail != null) {
+                    return resize(thumbnail, w, h);
+                }
+                input.seek(0);
+            }
+            return resize(decodeSubsampled(input, w, h), w, h);
+        }
+    }
+
+    /**
+     * @param imgFile
+     *            the image file
+     * @return the JPEG data of the thumbnail embedded in the file or null if
+     *         there is no suitable one
+     * @throws IOException
+     */
+    public byte[] readEmbeddedThumbnail(File imgFile) throws IOException {
+        if (!isJpegFile(imgFile)) {
+            return null;
+        }
+        try (ImageInputStream input = ImageIO.createImageInputStream(imgFile)) {
+            if (input == null) {
+                throw new IOException("Can't open " + imgFile);
+            }
+            return exifThumbnailReader.readData(input);
+        }
+    }
+
+    /**
+     * Decode an image already read in memory and resize it to fit in the
+     * given size.
+     *
+     * @param imgData
+     *            the image file content
+     * @param w
+     *            desired width
+     * @param h
+     *            desired height
+     * @return the resized image
+     * @throws IOException
+     *             if no reader handles the image format
+     * @throws ImagingOpException
+     * @throws IllegalArgumentException
+     */
+    public BufferedImage decode(byte[] imgData, int w, int h) throws IOException, ImagingOpException,
+            IllegalArgumentException {
+        return decode(ByteBuffer.wrap(imgData), w, h);
+    }
+
+    /**
+     * Decode an image already read in memory (e.g. a mapped file) and resize
+     * it to fit in the given size.
+     *
+     * @param imgData
+     *            the image file content
+     * @param w
+     *            desired width
+     * @param h
+     *            desired height
+     * @return the resized image
+     * @throws IOException
+     *             if no reader handles the image format
+     * @throws ImagingOpException
+     * @throws IllegalArgumentException
+     */
+    public BufferedImage decode(ByteBuffer imgData, int w, int h) throws IOException, ImagingOpException,
+            IllegalArgumentException {
+        if (PreviewExecutor.isCurrentTaskCancelled()) {
+            throw new InterruptedIOException("Decode cancelled");
+        }
+        try (ImageInputStream input = new MappedImageInputStream(imgData)) {
+            return resize(decodeSubsampled(input, w, h), w, h);
+        }
+    }
+
+    /**
+     * Decode the first image of the stream with the biggest source subsampling
+     * keeping it at least {@link #OVERSAMPLING} times bigger than the given
+     * size.
+     *
+     * @param input
+     *            the stream to decode
+     * @param w
+     *            desired width
+     * @param h
+     *            desired height
+     * @return the subsampled image (not resized)
+     * @throws IOException
+     */
+    protected BufferedImage decodeSubsampled(ImageInputStream input, int w, int h) throws IOException {
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            throw new IOException("No image reader available");
+        }
+        ImageReader reader = readers.next();
+        try {
+            reader.setInput(input, true, true);
+            reader.addIIOReadProgressListener(CANCELLATION_LISTENER);
+            ImageReadParam param = reader.getDefaultReadParam();
+            int subsampling = getSubsampling(reader.getWidth(0), reader.getHeight(0), w, h);
+            if (subsampling > 1) {
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            }
+            BufferedImage img = reader.read(0, param);
+            if (PreviewExecutor.isCurrentTaskCancelled()) {
+                throw new InterruptedIOException("Decode cancelled");
+            }
+            return img;
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * @param img
+     *            the image to resize
+     * @param w
+     *            desired width
+     * @param h
+     *            desired height
+     * @return the resized image
+     */
+    protected BufferedImage resize(BufferedImage img, int w, int h) {
+        return Scalr.resize(img, Scalr.Method.SPEED, Scalr.Mode.AUTOMATIC, w, h, Scalr.OP_ANTIALIAS);
+    }
+
+    private boolean isJpegFile(File imgFile) {
+        String fileName = imgFile.getName().toLowerCase();
+        return fileName.endsWith(".jpg") || fileName.endsWith(".jpeg");
+    }
+
+    private int getSubsampling(int srcWidth, int srcHeight, int w, int h) {
+        int subsampling = Math.min(srcWidth / (w * OVERSAMPLING), srcHeight / (h * OVERSAMPLING));
+        return Math.max(1, subsampling);
+    }
+
+}
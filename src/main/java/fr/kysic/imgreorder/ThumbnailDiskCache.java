@@ -0,0 +1,559 @@
+package fr.kysic.imgreorder;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistent thumbnail cache.<br>
+ * Thumbnails are stored encoded in a single append-only pack file, and located
+ * through an index file: a snapshot of the index followed by a record
+ * appended for each stored or re-keyed thumbnail, so the thumbnails stored
+ * before a crash are not lost. An entry is keyed by the image absolute path
+ * and is only valid while the image file length and last modification time
+ * are unchanged (so a renamed image can be re-keyed instead of
+ * invalidated).<br>
+ * When the pack file exceeds the maximum size, the least recently used
+ * entries are dropped by a compaction, which writes a new pack file: each
+ * pack file is numbered by a generation, written in the index, so that the
+ * index always locates its entries in the pack file it was written for, even
+ * after a crash during a compaction.<br>
+ * The cache directory is locked by the cache, a second application instance
+ * doesn't use it (its thumbnails are only cached in memory).
+ */
+public class ThumbnailDiskCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ThumbnailDiskCache.class);
+
+    private static final String PACK_PREFIX = "thumbnails";
+    private static final String PACK_SUFFIX = ".pack";
+    private static final String INDEX_FILE = "thumbnails.idx";
+    private static final String LOCK_FILE = "thumbnails.lock";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final int INDEX_VERSION = 3;
+
+    /**
+     * Index record of a stored thumbnail.
+     */
+    private static final byte PUT_RECORD = 1;
+
+    /**
+     * Index record of a re-keyed thumbnail.
+     */
+    private static final byte RENAME_RECORD = 2;
+
+    /**
+     * After a compaction the pack file is filled to this ratio of the maximum
+     * size, so that compaction doesn't happen on each stored thumbnail.
+     */
+    private static final double COMPACTION_RATIO = 0.75;
+
+    private static class Entry {
+        long length;
+        long lastModified;
+        long offset;
+        int size;
+        long lastAccess;
+    }
+
+    private final File cacheDir;
+
+    private final File indexFile;
+
+    private final File lockFile;
+
+    private final long maxSize;
+
+    private final Map<String, Entry> index = new HashMap<String, Entry>();
+
+    private FileChannel lockChannel;
+
+    private FileLock lock;
+
+    /**
+     * Generation of the pack file, changed by each compaction.
+     */
+    private long generation;
+
+    private File packFile;
+
+    private FileChannel pack;
+
+    private long packSize;
+
+    /**
+     * Records appended to the index file since its snapshot.
+     */
+    private DataOutputStream indexLog;
+
+    private int indexLogCount;
+
+    /**
+     * Open (or create) the cache.
+     *
+     * @param cacheDir
+     *            directory in which the pack and index files are stored
+     * @param maxSize
+     *            maximum size of the pack file in bytes
+     */
+    public ThumbnailDiskCache(File cacheDir, long maxSize) {
+        this.cacheDir = cacheDir;
+        this.indexFile = new File(cacheDir, INDEX_FILE);
+        this.lockFile = new File(cacheDir, LOCK_FILE);
+        this.maxSize = maxSize;
+        try {
+            Files.createDirectories(cacheDir.toPath());
+            if (!lock()) {
+                LOGGER.info("Thumbnail cache {} is used by another instance, thumbnails are only cached in memory",
+                        cacheDir);
+                return;
+            }
+            loadIndex();
+            packFile = getPackFile(generation);
+            deleteOtherPacks();
+            if (packFile.length() > maxSize) {
+                compact();
+            }
+            openPack();
+            saveIndex();
+        } catch (IOException e) {
+            LOGGER.error("Unable to open thumbnail cache in {}, it is disabled", cacheDir, e);
+            index.clear();
+            closePack();
+        }
+    }
+
+    private File getPackFile(long packGeneration) {
+        return new File(cacheDir, PACK_PREFIX + "-" + packGeneration + PACK_SUFFIX);
+    }
+
+    /**
+     * Delete the pack files of the other generations, left by a crash during
+     * a compaction (or by a former version).
+     */
+    private void deleteOtherPacks() throws IOException {
+        File[] files = cacheDir.listFiles((dir, name) -> name.startsWith(PACK_PREFIX) && name.endsWith(PACK_SUFFIX)
+                && !name.equals(packFile.getName()));
+        if (files != null) {
+            for (File file : files) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+    }
+
+    /**
+     * @return false if the cache is locked by another instance
+     */
+    private boolean lock() throws IOException {
+        lockChannel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Locked by another cache of this application
+            lock = null;
+        }
+        if (lock == null) {
+            lockChannel.close();
+            lockChannel = null;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param imgFile
+     *            the image file
+     * @return true if a valid thumbnail of the image is stored
+     */
+    public boolean contains(File imgFile) {
+        return contains(imgFile, imgFile.length(), imgFile.lastModified());
+    }
+
+    /**
+     * @param imgFile
+     *            the image file
+     * @param length
+     *            the image file length, already known by the caller
+     * @param lastModified
+     *            the image file last modification time, already known by the
+     *            caller
+     * @return true if a valid thumbnail of the image is stored
+     */
+    public synchronized boolean contains(File imgFile, long length, long lastModified) {
+        Entry entry = index.get(imgFile.getAbsolutePath());
+        return entry != null && entry.length == length && entry.lastModified == lastModified;
+    }
+
+    /**
+     * @param imgFile
+     *            the image file
+     * @return the stored thumbnail of the image or null if there is no valid
+     *         one
+     */
+    public BufferedImage get(File imgFile) {
+        byte[] encoded = getEncoded(imgFile);
+        if (encoded == null) {
+            return null;
+        }
+        try {
+            return ImageIO.read(new MappedImageInputStream(ByteBuffer.wrap(encoded)));
+        } catch (IOException e) {
+            LOGGER.error("Unable to read cached thumbnail of {}", imgFile, e);
+            return null;
+        }
+    }
+
+    /**
+     * @param imgFile
+     *            the image file
+     * @return the stored thumbnail of the image, encoded, or null if there is
+     *         no valid one
+     */
+    public byte[] getEncoded(File imgFile) {
+        long length = imgFile.length();
+        long lastModified = imgFile.lastModified();
+        synchronized (this) {
+            if (pack == null) {
+                return null;
+            }
+            Entry entry = index.get(imgFile.getAbsolutePath());
+            if (entry == null || entry.length != length || entry.lastModified != lastModified) {
+                return null;
+            }
+            entry.lastAccess = System.currentTimeMillis();
+            try {
+                // Read under the lock, a compaction moves the entries
+                return readEntry(entry);
+            } catch (IOException e) {
+                LOGGER.error("Unable to read cached thumbnail of {}", imgFile, e);
+                return null;
+            }
+        }
+    }
+
+    private byte[] readEntry(Entry entry) throws IOException {
+        byte[] data = new byte[entry.size];
+        ByteBuffer dst = ByteBuffer.wrap(data);
+        while (dst.hasRemaining()) {
+            if (pack.read(dst, entry.offset + dst.position()) < 0) {
+                throw new IOException("Truncated thumbnail pack file");
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Store the thumbnail of an image (appended to the pack file).
+     *
+     * @param imgFile
+     *            the image file
+     * @param thumbnail
+     *            its thumbnail
+     */
+    public void put(File imgFile, BufferedImage thumbnail) {
+        try {
+            put(imgFile, CompactThumbnail.encode(thumbnail));
+        } catch (IOException e) {
+            LOGGER.error("Unable to cache thumbnail of {}", imgFile, e);
+        }
+    }
+
+    /**
+     * Store the thumbnail of an image (appended to the pack file). The least
+     * recently used thumbnails are dropped if the pack file would exceed the
+     * maximum size.
+     *
+     * @param imgFile
+     *            the image file
+     * @param encoded
+     *            its thumbnail, encoded (see
+     *            {@link CompactThumbnail#encode(BufferedImage)})
+     */
+    public void put(File imgFile, byte[] encoded) {
+        Entry entry = new Entry();
+        entry.length = imgFile.length();
+        entry.lastModified = imgFile.lastModified();
+        entry.size = encoded.length;
+        entry.lastAccess = System.currentTimeMillis();
+        String path = imgFile.getAbsolutePath();
+        synchronized (this) {
+            if (pack == null) {
+                return;
+            }
+            try {
+                if (packSize + entry.size > maxSize) {
+                    compact();
+                }
+                entry.offset = packSize;
+                ByteBuffer src = ByteBuffer.wrap(encoded);
+                while (src.hasRemaining()) {
+                    pack.write(src, entry.offset + src.position());
+                }
+                packSize += entry.size;
+                index.put(path, entry);
+                // Recorded once its thumbnail is in the pack file
+                indexLog.writeByte(PUT_RECORD);
+                writeEntry(indexLog, path, entry);
+                logged();
+            } catch (IOException e) {
+                LOGGER.error("Unable to cache thumbnail of {}, the cache is disabled", imgFile, e);
+                closePack();
+            }
+        }
+    }
+
+    /**
+     * Re-key the thumbnail of a renamed image.
+     *
+     * @param oldPath
+     *            previous absolute path of the image
+     * @param newPath
+     *            new absolute path of the image
+     */
+    public synchronized void rename(String oldPath, String newPath) {
+        Entry entry = index.remove(oldPath);
+        if (entry == null) {
+            return;
+        }
+        index.put(newPath, entry);
+        if (indexLog != null) {
+            try {
+                indexLog.writeByte(RENAME_RECORD);
+                indexLog.writeUTF(oldPath);
+                indexLog.writeUTF(newPath);
+                logged();
+            } catch (IOException e) {
+                LOGGER.error("Unable to save thumbnail cache index {}, the cache is disabled", indexFile, e);
+                closePack();
+            }
+        }
+    }
+
+    /**
+     * Flush a record appended to the index file, and replace the index file
+     * by a snapshot when the records outnumber the entries (e.g. images
+     * renamed many times).
+     */
+    private void logged() throws IOException {
+        indexLog.flush();
+        indexLogCount++;
+        if (indexLogCount > index.size()) {
+            saveIndex();
+        }
+    }
+
+    /**
+     * Save the index and release the pack file.
+     */
+    public synchronized void close() {
+        if (pack != null) {
+            try {
+                pack.force(false);
+                saveIndex();
+            } catch (IOException e) {
+                LOGGER.error("Unable to save thumbnail cache index {}", indexFile, e);
+            }
+        }
+        closePack();
+    }
+
+    /**
+     * Open the pack file. Read through the channel rather than mapped, so
+     * that the file can be replaced by a compaction while the cache is open.
+     */
+    private void openPack() throws IOException {
+        pack = FileChannel.open(packFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        packSize = pack.size();
+        // Entries pointing after the end of a truncated pack are useless
+        index.values().removeIf(e -> e.offset + e.size > packSize);
+    }
+
+    private void closePack() {
+        if (indexLog != null) {
+            try {
+                indexLog.close();
+            } catch (IOException e) {
+                LOGGER.error("Unable to close thumbnail cache index {}", indexFile, e);
+            }
+            indexLog = null;
+        }
+        if (pack != null) {
+            try {
+                pack.close();
+            } catch (IOException e) {
+                LOGGER.error("Unable to close thumbnail pack file {}", packFile, e);
+            }
+            pack = null;
+        }
+        if (lockChannel != null) {
+            try {
+                // Releases the lock
+                lockChannel.close();
+            } catch (IOException e) {
+                LOGGER.error("Unable to release thumbnail cache lock {}", lockFile, e);
+            }
+            lockChannel = null;
+            lock = null;
+        }
+    }
+
+    private void loadIndex() throws IOException {
+        if (!indexFile.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != INDEX_VERSION) {
+                LOGGER.info("Thumbnail cache index {} has an old format, ignored", indexFile);
+                return;
+            }
+            generation = in.readLong();
+            while (true) {
+                byte record;
+                try {
+                    record = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                try {
+                    if (record == PUT_RECORD) {
+                        String path = in.readUTF();
+                        Entry entry = new Entry();
+                        entry.length = in.readLong();
+                        entry.lastModified = in.readLong();
+                        entry.offset = in.readLong();
+                        entry.size = in.readInt();
+                        entry.lastAccess = in.readLong();
+                        index.put(path, entry);
+                    } else if (record == RENAME_RECORD) {
+                        String oldPath = in.readUTF();
+                        String newPath = in.readUTF();
+                        Entry entry = index.remove(oldPath);
+                        if (entry != null) {
+                            index.put(newPath, entry);
+                        }
+                    } else {
+                        LOGGER.warn("Thumbnail cache index {} is corrupted, the end is ignored", indexFile);
+                        break;
+                    }
+                } catch (EOFException | UTFDataFormatException e) {
+                    // Record interrupted by a crash
+                    break;
+                }
+            }
+        }
+    }
+
+    private static void writeEntry(DataOutputStream out, String path, Entry entry) throws IOException {
+        out.writeUTF(path);
+        out.writeLong(entry.length);
+        out.writeLong(entry.lastModified);
+        out.writeLong(entry.offset);
+        out.writeInt(entry.size);
+        out.writeLong(entry.lastAccess);
+    }
+
+    /**
+     * Replace the index file by a snapshot of the index, the next records are
+     * appended to it.
+     */
+    private void saveIndex() throws IOException {
+        if (indexLog != null) {
+            indexLog.close();
+            indexLog = null;
+        }
+        File tmpFile = new File(indexFile.getPath() + TMP_SUFFIX);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(INDEX_VERSION);
+            out.writeLong(generation);
+            for (Map.Entry<String, Entry> e : index.entrySet()) {
+                out.writeByte(PUT_RECORD);
+                writeEntry(out, e.getKey(), e.getValue());
+            }
+        }
+        Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        indexLog = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, true)));
+        indexLogCount = 0;
+    }
+
+    /**
+     * Write a pack file of the next generation with the most recently used
+     * entries only. It replaces the current one once the index of the new
+     * generation is saved. The pack file is reopened if the cache is open.
+     */
+    private void compact() throws IOException {
+        List<Map.Entry<String, Entry>> entries = new ArrayList<Map.Entry<String, Entry>>(index.entrySet());
+        entries.sort((e1, e2) -> Long.compare(e2.getValue().lastAccess, e1.getValue().lastAccess));
+        long targetSize = (long) (maxSize * COMPACTION_RATIO);
+        File newPackFile = getPackFile(generation + 1);
+        Map<String, Entry> kept = new HashMap<String, Entry>();
+        try (FileChannel src = FileChannel.open(packFile.toPath(), StandardOpenOption.READ);
+                FileChannel dst = FileChannel.open(newPackFile.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long offset = 0;
+            for (Map.Entry<String, Entry> e : entries) {
+                Entry entry = e.getValue();
+                if (offset + entry.size > targetSize) {
+                    break;
+                }
+                if (entry.offset + entry.size > src.size()) {
+                    continue;
+                }
+                long transferred = 0;
+                while (transferred < entry.size) {
+                    transferred += src.transferTo(entry.offset + transferred, entry.size - transferred, dst);
+                }
+                entry.offset = offset;
+                offset += entry.size;
+                kept.put(e.getKey(), entry);
+            }
+            // On the disk before the index refers to it
+            dst.force(true);
+        }
+        LOGGER.info("Thumbnail cache compacted from {} to {} entries", index.size(), kept.size());
+        index.clear();
+        index.putAll(kept);
+        generation++;
+        // The switch to the new pack file: until the index is replaced, the
+        // former index and pack file are still used after a crash
+        saveIndex();
+        boolean open = pack != null;
+        if (open) {
+            pack.close();
+            pack = null;
+        }
+        File oldPackFile = packFile;
+        packFile = newPackFile;
+        Files.deleteIfExists(oldPackFile.toPath());
+        if (open) {
+            openPack();
+        }
+    }
+
+}
@@ -0,0 +1,403 @@
+package fr.kysic.imgreorder;
+
+import java.awt.Color;
+import java.awt.Container;
+import java.awt.Dimension;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.event.MouseEvent;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.swing.JComponent;
+import javax.swing.JViewport;
+import javax.swing.Scrollable;
+import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
+import javax.swing.ToolTipManager;
+import javax.swing.UIManager;
+
+/**
+ * Grid displaying the previews of an image list.<br>
+ * The image list is the order model, the grid is only a view of it: cells
+ * have all the same size, so only the visible cells are painted and the cell
+ * under a point is found by arithmetic, whatever the number of images.<br>
+ * Cells are laid out like a left aligned {@link WrapLayout} with a 5-unit gap.
+ * The previews are painted once decoded: the previews not decoded yet are
+ * decoded from the thumbnail store by a background thread (the EDT doesn't
+ * wait for them nor holds the image list lock meanwhile), the store keeps
+ * decoded the previews of the visible cells and of a few rows around them.
+ * When images of several folders are displayed, the first image of each
+ * folder is marked.
+ */
+public class ThumbnailGrid extends JComponent implements Scrollable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int GAP = 5;
+
+    private static final int SELECTION_BORDER_THICKNESS = 3;
+
+    private static final int FOLDER_MARK_THICKNESS = 3;
+
+    /**
+     * Number of rows above and below the visible ones whose previews are kept
+     * decoded, so that scrolling by a few rows doesn't decode them again.
+     */
+    private static final int PREFETCH_ROWS = 4;
+
+    private final transient List<ImgPreviewXPath> imageList;
+
+    private final transient ImageIndex imageIndex;
+
+    private final transient ThumbnailMemoryCache thumbnailStore;
+
+    private final transient Consumer<ImgPreviewXPath> releasedConsumer;
+
+    /**
+     * Decodes the previews to paint, only the ones of the last painted frame
+     * are queued.
+     */
+    private final transient ThreadPoolExecutor previewDecoder = new ThreadPoolExecutor(1, 1, 0L,
+            TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+                Thread thread = new Thread(r, "ThumbnailGrid decoder");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * Previews queued to be decoded, accessed on the EDT only.
+     */
+    private final transient Set<CompactThumbnail> decoding = new HashSet<CompactThumbnail>();
+
+    private final int cellWidth;
+
+    private final int cellHeight;
+
+    private String rootDirectory;
+
+    private int selectionBegin = -1;
+
+    private int selectionEnd = -1;
+
+    /**
+     * @param imageList
+     *            list of the images to display, in display order
+     * @param cellWidth
+     *            width of a preview
+     * @param cellHeight
+     *            height of a preview
+     * @param thumbnailStore
+     *            store decoding the previews
+     * @param releasedConsumer
+     *            called with the images whose preview has been released from
+     *            the store when they are painted (their preview is reset)
+     */
+    public ThumbnailGrid(List<ImgPreviewXPath> imageList, int cellWidth, int cellHeight,
+            ThumbnailMemoryCache thumbnailStore, Consumer<ImgPreviewXPath> releasedConsumer) {
+        this.imageList = imageList;
+        this.imageIndex = new ImageIndex(imageList);
+        this.thumbnailStore = thumbnailStore;
+        this.releasedConsumer = releasedConsumer;
+        this.cellWidth = cellWidth;
+        this.cellHeight = cellHeight;
+        setOpaque(true);
+        setBackground(UIManager.getColor("Panel.background"));
+        setForeground(UIManager.getColor("Label.foreground"));
+        setFont(UIManager.getFont("Label.font"));
+        ToolTipManager.sharedInstance().registerComponent(this);
+    }
+
+    /**
+     * @param rootDirectory
+     *            absolute path of the directory containing the folders of
+     *            the images, to mark the first image of each folder, null if
+     *            the images are all in the same folder
+     */
+    public void setRootDirectory(String rootDirectory) {
+        this.rootDirectory = rootDirectory;
+        repaint();
+    }
+
+    /**
+     * @return the list of the displayed images
+     */
+    public List<ImgPreviewXPath> getImageList() {
+        return imageList;
+    }
+
+    /**
+     * @param img
+     *            an image
+     * @return the index of the image in the image list, -1 if it is not in
+     *         it. Must be called with the image list lock held.
+     */
+    public int indexOf(ImgPreviewXPath img) {
+        return imageIndex.indexOf(img);
+    }
+
+    /**
+     * Must be called (on the EDT) when images are added, removed or moved in
+     * the image list.
+     */
+    public void modelChanged() {
+        modelChanged(0);
+    }
+
+    /**
+     * Must be called (on the EDT) when images are added, removed or moved in
+     * the image list.
+     *
+     * @param firstChanged
+     *            the first index whose image changed
+     */
+    public void modelChanged(int firstChanged) {
+        synchronized (imageList) {
+            imageIndex.invalidateFrom(firstChanged);
+        }
+        revalidate();
+        repaint();
+    }
+
+    /**
+     * Highlight a range of images.
+     *
+     * @param begin
+     *            index of the first selected image (-1 for no selection)
+     * @param end
+     *            index of the last selected image (-1 for no selection)
+     */
+    public void setSelection(int begin, int end) {
+        selectionBegin = begin;
+        selectionEnd = end;
+        repaint();
+    }
+
+    private int getColumnCount() {
+        return Math.max(1, (getWidth() - GAP) / (cellWidth + GAP));
+    }
+
+    /**
+     * @param index
+     *            index of an image
+     * @return the bounds of the cell displaying the image
+     */
+    public Rectangle getCellBounds(int index) {
+        int columns = getColumnCount();
+        return new Rectangle(GAP + (index % columns) * (cellWidth + GAP), GAP + (index / columns) * (cellHeight + GAP),
+                cellWidth, cellHeight);
+    }
+
+    /**
+     * @param p
+     *            a point of the grid
+     * @return the index of the image displayed under the point, -1 if there is
+     *         none
+     */
+    public int indexAt(Point p) {
+        int x = p.x - GAP;
+        int y = p.y - GAP;
+        if (x < 0 || y < 0 || x % (cellWidth + GAP) >= cellWidth || y % (cellHeight + GAP) >= cellHeight) {
+            return -1;
+        }
+        int columns = getColumnCount();
+        int column = x / (cellWidth + GAP);
+        if (column >= columns) {
+            return -1;
+        }
+        int index = (y / (cellHeight + GAP)) * columns + column;
+        return index < imageList.size() ? index : -1;
+    }
+
+    /**
+     * @param index
+     *            index of an image
+     * @param visible
+     *            the visible rectangle of the grid
+     * @return the vertical distance between the image cell and the visible
+     *         rectangle (0 if it is visible)
+     */
+    public long getDistance(int index, Rectangle visible) {
+        int top = GAP + (index / getColumnCount()) * (cellHeight + GAP);
+        if (top + cellHeight < visible.y) {
+            return visible.y - (top + cellHeight);
+        } else if (top > visible.y + visible.height) {
+            return top - (visible.y + visible.height);
+        }
+        return 0;
+    }
+
+    @Override
+    public void setBounds(int x, int y, int width, int height) {
+        boolean widthChanged = width != getWidth();
+        super.setBounds(x, y, width, height);
+        if (widthChanged) {
+            // The number of rows, so the preferred height, depends on the width
+            revalidate();
+        }
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        if (isPreferredSizeSet()) {
+            return super.getPreferredSize();
+        }
+        int columns = getColumnCount();
+        int rows = (imageList.size() + columns - 1) / columns;
+        return new Dimension(GAP + columns * (cellWidth + GAP), GAP + rows * (cellHeight + GAP));
+    }
+
+    @Override
+    public String getToolTipText(MouseEvent event) {
+        synchronized (imageList) {
+            int index = indexAt(event.getPoint());
+            if (index == -1) {
+                return null;
+            }
+            ImgPreviewXPath img = imageList.get(index);
+            return rootDirectory != null
+                    ? Paths.get(rootDirectory).relativize(Paths.get(img.getAbsolutePath())).toString()
+                    : img.getName();
+        }
+    }
+
+    /**
+     * @return the number of cells visible, or close enough to the visible rows
+     *         to be scrolled in soon
+     */
+    private int getPrefetchedCellCount() {
+        Rectangle visible = getVisibleRect();
+        int rows = (visible.height + cellHeight + GAP - 1) / (cellHeight + GAP) + 1;
+        return (rows + 2 * PREFETCH_ROWS) * getColumnCount();
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        thumbnailStore.setDecodedCount(getPrefetchedCellCount());
+        // The previews queued for a former frame and not decoded yet may be
+        // scrolled out, the ones still visible are queued again below
+        previewDecoder.getQueue().clear();
+        decoding.clear();
+        Rectangle clip = g.getClipBounds();
+        g.setColor(getBackground());
+        g.fillRect(clip.x, clip.y, clip.width, clip.height);
+        int columns = getColumnCount();
+        int firstRow = Math.max(0, (clip.y - GAP) / (cellHeight + GAP));
+        int lastRow = (clip.y + clip.height - GAP) / (cellHeight + GAP);
+        int first = firstRow * columns;
+        List<ImgPreviewXPath> cells = new ArrayList<ImgPreviewXPath>();
+        List<Integer> folderStarts = new ArrayList<Integer>();
+        synchronized (imageList) {
+            int last = Math.min(imageList.size() - 1, (lastRow + 1) * columns - 1);
+            for (int i = first; i <= last; i++) {
+                ImgPreviewXPath img = imageList.get(i);
+                cells.add(img);
+                if (rootDirectory != null && (i == 0
+                        || img.getFolderKey().compareTo(imageList.get(i - 1).getFolderKey()) != 0)) {
+                    folderStarts.add(i);
+                }
+            }
+        }
+        for (int i = 0; i < cells.size(); i++) {
+            int index = first + i;
+            paintCell(g, getCellBounds(index), cells.get(i), index >= selectionBegin && index <= selectionEnd);
+        }
+        g.setColor(Color.orange);
+        for (int index : folderStarts) {
+            Rectangle cell = getCellBounds(index);
+            g.fillRect(cell.x - GAP + 1, cell.y, FOLDER_MARK_THICKNESS, cell.height);
+        }
+    }
+
+    /**
+     * @return the decoded preview of the image, null if it is not built, if it
+     *         has been released or if it is not decoded yet (it is then
+     *         decoded in background and painted again)
+     */
+    private BufferedImage getThumbnail(ImgPreviewXPath img) {
+        CompactThumbnail compact = img.getThumbnail();
+        if (compact == null) {
+            return null;
+        }
+        BufferedImage thumbnail = thumbnailStore.getDecodedImage(compact);
+        if (thumbnail != null) {
+            return thumbnail;
+        }
+        if (compact.isReleased()) {
+            img.setThumbnail(null);
+            releasedConsumer.accept(img);
+        } else if (decoding.add(compact)) {
+            previewDecoder.execute(() -> {
+                // Kept decoded by the store
+                boolean decoded = thumbnailStore.getImage(compact) != null;
+                SwingUtilities.invokeLater(() -> {
+                    decoding.remove(compact);
+                    if (decoded) {
+                        repaint(getVisibleRect());
+                    }
+                });
+            });
+        }
+        return null;
+    }
+
+    private void paintCell(Graphics g, Rectangle cell, ImgPreviewXPath img, boolean selected) {
+        BufferedImage thumbnail = getThumbnail(img);
+        if (thumbnail != null) {
+            int w = thumbnail.getWidth(null);
+            int h = thumbnail.getHeight(null);
+            g.drawImage(thumbnail, cell.x + (cell.width - w) / 2, cell.y + (cell.height - h) / 2, null);
+        } else {
+            Graphics textGraphics = g.create(cell.x, cell.y, cell.width, cell.height);
+            textGraphics.setColor(getForeground());
+            textGraphics.setFont(getFont());
+            FontMetrics metrics = textGraphics.getFontMetrics();
+            String name = img.getName();
+            textGraphics.drawString(name, Math.max(0, (cell.width - metrics.stringWidth(name)) / 2),
+                    (cell.height - metrics.getHeight()) / 2 + metrics.getAscent());
+            textGraphics.dispose();
+        }
+        int thickness = selected ? SELECTION_BORDER_THICKNESS : 1;
+        g.setColor(selected ? Color.blue : Color.black);
+        for (int i = 0; i < thickness; i++) {
+            g.drawRect(cell.x + i, cell.y + i, cell.width - 1 - 2 * i, cell.height - 1 - 2 * i);
+        }
+    }
+
+    @Override
+    public Dimension getPreferredScrollableViewportSize() {
+        return getPreferredSize();
+    }
+
+    @Override
+    public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return orientation == SwingConstants.VERTICAL ? (cellHeight + GAP) / 4 : (cellWidth + GAP) / 4;
+    }
+
+    @Override
+    public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return orientation == SwingConstants.VERTICAL ? visibleRect.height : visibleRect.width;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportWidth() {
+        return true;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportHeight() {
+        Container parent = getParent();
+        return parent instanceof JViewport && parent.getHeight() > getPreferredSize().height;
+    }
+
+}
@@ -0,0 +1,364 @@
+package fr.kysic.imgreorder;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In memory thumbnail store shared by all the directories opened in the
+ * session.<br>
+ * Thumbnails are stored compact (see {@link CompactThumbnail}), packed in a
+ * few large direct buffers (slabs) rather than in a direct buffer each. The
+ * store size is bounded by the memory of the slabs (not by a number of
+ * entries). When the budget is reached, the least recently used slab is
+ * reused: its thumbnails are evicted and their data released, even if they are
+ * still displayed (they are built again from the disk cache when they are
+ * painted). Like for {@link ThumbnailDiskCache}, entries are keyed by the
+ * image absolute path and checked against the file length and last
+ * modification time.<br>
+ * Only the last painted thumbnails are kept decoded, in a working set sized by
+ * the grid (see {@link #setDecodedCount(int)}).
+ */
+public class ThumbnailMemoryCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ThumbnailMemoryCache.class);
+
+    /**
+     * Minimal number of decoded thumbnails kept, a few screens of thumbnails
+     * on a small display.
+     */
+    private static final int MIN_DECODED_COUNT = 256;
+
+    /**
+     * Size of a slab, a few hundred thumbnails.
+     */
+    private static final int SLAB_SIZE = 1024 * 1024;
+
+    /**
+     * A direct buffer in which thumbnails are appended.
+     */
+    static class Slab {
+        final ByteBuffer buffer;
+        final List<Entry> entries = new ArrayList<Entry>();
+        long lastAccess;
+
+        Slab(int size) {
+            buffer = ByteBuffer.allocateDirect(size);
+        }
+    }
+
+    private static class Entry {
+        String path;
+        final long length;
+        final long lastModified;
+        final CompactThumbnail thumbnail;
+
+        Entry(String path, long length, long lastModified, CompactThumbnail thumbnail) {
+            this.path = path;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.thumbnail = thumbnail;
+        }
+    }
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    private final Map<CompactThumbnail, BufferedImage> decoded = new LinkedHashMap<CompactThumbnail, BufferedImage>(
+            16, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<CompactThumbnail, BufferedImage> eldest) {
+            return size() > decodedCount;
+        }
+
+    };
+
+    private int decodedCount = MIN_DECODED_COUNT;
+
+    private final long maxSize;
+
+    private final int slabSize;
+
+    private final List<Slab> slabs = new ArrayList<Slab>();
+
+    /**
+     * Slab in which the thumbnails are appended.
+     */
+    private Slab currentSlab;
+
+    /**
+     * Access clock of the slabs.
+     */
+    private long accessCount;
+
+    private long hitCount;
+
+    private long missCount;
+
+    /**
+     * @param maxSize
+     *            memory budget of the cache in bytes
+     */
+    public ThumbnailMemoryCache(long maxSize) {
+        this.maxSize = maxSize;
+        this.slabSize = (int) Math.max(1, Math.min(SLAB_SIZE, maxSize));
+    }
+
+    /**
+     * @param imgFile
+     *            the image file
+     * @return the cached thumbnail of the image or null if there is no valid
+     *         one
+     */
+    public CompactThumbnail get(File imgFile) {
+        return get(imgFile, imgFile.length(), imgFile.lastModified());
+    }
+
+    /**
+     * @param imgFile
+     *            the image file
+     * @param length
+     *            the image file length, already known by the caller
+     * @param lastModified
+     *            the image file last modification time, already known by the
+     *            caller
+     * @return the cached thumbnail of the image or null if there is no valid
+     *         one
+     */
+    public synchronized CompactThumbnail get(File imgFile, long length, long lastModified) {
+        Entry entry = entries.get(imgFile.getAbsolutePath());
+        if (entry != null && entry.length == length && entry.lastModified == lastModified) {
+            hitCount++;
+            accessed(entry.thumbnail);
+            return entry.thumbnail;
+        }
+        missCount++;
+        return null;
+    }
+
+    private void accessed(CompactThumbnail thumbnail) {
+        if (thumbnail.slab != null) {
+            thumbnail.slab.lastAccess = ++accessCount;
+        }
+    }
+
+    /**
+     * Cache the thumbnail of an image, reusing the least recently used slab if
+     * the memory budget is exceeded.
+     *
+     * @param imgFile
+     *            the image file
+     * @param encoded
+     *            its thumbnail, encoded (see
+     *            {@link CompactThumbnail#encode(BufferedImage)})
+     * @return the stored thumbnail (not cached if it is bigger than a slab)
+     */
+    public CompactThumbnail put(File imgFile, byte[] encoded) {
+        String path = imgFile.getAbsolutePath();
+        long length = imgFile.length();
+        long lastModified = imgFile.lastModified();
+        if (encoded.length > slabSize) {
+            return new CompactThumbnail(ByteBuffer.wrap(encoded), null);
+        }
+        synchronized (this) {
+            Slab slab = getSlab(encoded.length);
+            int offset = slab.buffer.position();
+            slab.buffer.put(encoded);
+            ByteBuffer data = slab.buffer.duplicate();
+            data.position(offset);
+            data.limit(offset + encoded.length);
+            CompactThumbnail thumbnail = new CompactThumbnail(data, slab);
+            Entry entry = new Entry(path, length, lastModified, thumbnail);
+            slab.entries.add(entry);
+            slab.lastAccess = ++accessCount;
+            entries.put(path, entry);
+            return thumbnail;
+        }
+    }
+
+    /**
+     * @return a slab with room for the given size: the current one, a new one
+     *         within the budget, or the least recently used one, emptied
+     */
+    private Slab getSlab(int size) {
+        if (currentSlab != null && currentSlab.buffer.remaining() >= size) {
+            return currentSlab;
+        }
+        if (slabs.size() < Math.max(1, maxSize / slabSize)) {
+            currentSlab = new Slab(slabSize);
+            slabs.add(currentSlab);
+            return currentSlab;
+        }
+        Slab eldest = slabs.get(0);
+        for (Slab slab : slabs) {
+            if (slab.lastAccess < eldest.lastAccess) {
+                eldest = slab;
+            }
+        }
+        for (Entry entry : eldest.entries) {
+            if (entries.get(entry.path) == entry) {
+                entries.remove(entry.path);
+            }
+            decoded.remove(entry.thumbnail);
+            entry.thumbnail.release();
+        }
+        eldest.entries.clear();
+        eldest.buffer.clear();
+        currentSlab = eldest;
+        return eldest;
+    }
+
+    /**
+     * @param thumbnail
+     *            a thumbnail
+     * @return the thumbnail if it is kept decoded, else null (it isn't
+     *         decoded)
+     */
+    public synchronized BufferedImage getDecodedImage(CompactThumbnail thumbnail) {
+        BufferedImage image = decoded.get(thumbnail);
+        if (image != null) {
+            accessed(thumbnail);
+        }
+        return image;
+    }
+
+    /**
+     * @param thumbnail
+     *            a thumbnail
+     * @return the decoded thumbnail, null if its data has been released
+     */
+    public BufferedImage getImage(CompactThumbnail thumbnail) {
+        byte[] encoded;
+        synchronized (this) {
+            BufferedImage image = decoded.get(thumbnail);
+            if (image != null) {
+                accessed(thumbnail);
+                return image;
+            }
+            encoded = thumbnail.copyData();
+            if (encoded == null) {
+                return null;
+            }
+            accessed(thumbnail);
+        }
+        BufferedImage image;
+        try {
+            image = ImageIO.read(new MappedImageInputStream(ByteBuffer.wrap(encoded)));
+        } catch (IOException e) {
+            LOGGER.error("Unable to decode a stored thumbnail", e);
+            return null;
+        }
+        if (image != null) {
+            putImage(thumbnail, image);
+        }
+        return image;
+    }
+
+    /**
+     * Keep a thumbnail decoded, e.g. when it has just been built.
+     *
+     * @param thumbnail
+     *            a thumbnail
+     * @param image
+     *            the thumbnail decoded
+     */
+    public synchronized void putImage(CompactThumbnail thumbnail, BufferedImage image) {
+        if (!thumbnail.isReleased()) {
+            decoded.put(thumbnail, image);
+        }
+    }
+
+    /**
+     * Size the working set of decoded thumbnails, e.g. from the number of
+     * thumbnails painted and prefetched by the grid, so that painting doesn't
+     * decode again the thumbnails decoded for the previous frame.
+     *
+     * @param count
+     *            number of decoded thumbnails to keep (at least a minimal
+     *            number are kept)
+     */
+    public synchronized void setDecodedCount(int count) {
+        int newCount = Math.max(MIN_DECODED_COUNT, count);
+        if (newCount < decodedCount) {
+            int removed = decoded.size() - newCount;
+            for (Iterator<CompactThumbnail> eldest = decoded.keySet().iterator(); removed > 0; removed--) {
+                eldest.next();
+                eldest.remove();
+            }
+        }
+        decodedCount = newCount;
+    }
+
+    /**
+     * Re-key the thumbnail of a renamed image.
+     *
+     * @param oldPath
+     *            previous absolute path of the image
+     * @param newPath
+     *            new absolute path of the image
+     */
+    public synchronized void rename(String oldPath, String newPath) {
+        Entry entry = entries.remove(oldPath);
+        if (entry != null) {
+            entry.path = newPath;
+            entries.put(newPath, entry);
+        }
+    }
+
+    /**
+     * @return number of thumbnails found in the cache
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return number of thumbnails not found in the cache
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return number of thumbnails in the cache
+     */
+    public synchronized int getCount() {
+        return entries.size();
+    }
+
+    /**
+     * @return mean memory used by a cached thumbnail in bytes
+     */
+    public synchronized long getBytesPerThumbnail() {
+        return entries.isEmpty() ? 0 : getSize() / entries.size();
+    }
+
+    /**
+     * @return memory used by the slabs of the cache in bytes
+     */
+    public synchronized long getSize() {
+        return (long) slabs.size() * slabSize;
+    }
+
+    /**
+     * @return memory budget of the cache in bytes
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+}
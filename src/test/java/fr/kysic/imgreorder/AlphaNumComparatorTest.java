@@ -0,0 +1,116 @@
+package fr.kysic.imgreorder;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Property tests of {@link AlphaNumComparator}: the in place comparison and
+ * the sort keys must order random strings like the former chunk based
+ * comparator ({@link LegacyAlphaNumComparator}).
+ */
+public class AlphaNumComparatorTest {
+
+    /**
+     * Characters of the random strings: digits (with more '0' for leading
+     * zeros), letters and the separators of file names.
+     */
+    private static final String ALPHABET = "0000123456789abcxyzABCXYZ._";
+
+    private static final int MAX_LENGTH = 12;
+
+    private static final int ITERATIONS = 200000;
+
+    private final Random random = new Random(42);
+
+    private final AlphaNumComparator comparator = new AlphaNumComparator();
+
+    private final LegacyAlphaNumComparator legacyComparator = new LegacyAlphaNumComparator();
+
+    /**
+     * @return a random string, empty one time out of ten
+     */
+    private String randomString() {
+        if (random.nextInt(10) == 0) {
+            return "";
+        }
+        int length = 1 + random.nextInt(MAX_LENGTH);
+        StringBuilder s = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            s.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+        return s.toString();
+    }
+
+    /**
+     * @return a random string, or a variation of the given one (sharing a
+     *         prefix with it) half of the time, so that the comparisons go
+     *         beyond the first chunk
+     */
+    private String randomString(String other) {
+        if (random.nextBoolean() || other.isEmpty()) {
+            return randomString();
+        }
+        return other.substring(0, random.nextInt(other.length() + 1)) + randomString();
+    }
+
+    private void assertSameOrder(String s1, String s2) {
+        int expected = Integer.signum(legacyComparator.compare(s1, s2));
+        String message = "'" + s1 + "' / '" + s2 + "'";
+        assertEquals(message, expected, Integer.signum(comparator.compare(s1, s2)));
+        assertEquals(message, expected,
+                Integer.signum(AlphaNumComparator.getSortKey(s1).compareTo(AlphaNumComparator.getSortKey(s2))));
+    }
+
+    @Test
+    public void compareMatchesLegacyComparator() {
+        for (int i = 0; i < ITERATIONS; i++) {
+            String s1 = randomString();
+            String s2 = randomString(s1);
+            assertSameOrder(s1, s2);
+            assertSameOrder(s2, s1);
+        }
+    }
+
+    /**
+     * Strings with the characters around the digits and the extreme ones,
+     * which the key encoding must order around the numeric chunks.
+     */
+    @Test
+    public void compareEdgeCases() {
+        String[] strings = { "", "0", "00", "01", "1", "10", "a", "a0", "a00", "a1", "a01", "a.1", "a_1", "a1b",
+                "a01b", "a10", ".", "_", "0.", "0_", "0a", "1a", "A", "Z", "z", "img9.jpg", "img10.jpg",
+                "img010.jpg", "/", ":", "a/1", "a:1", "a\u0000", "a\u0000b", "\u0000", "\uffff" };
+        for (String s1 : strings) {
+            for (String s2 : strings) {
+                assertSameOrder(s1, s2);
+            }
+        }
+    }
+
+    @Test
+    public void sortIsStable() {
+        List<String[]> elements = new ArrayList<String[]>();
+        // Few distinct strings, so that many elements are equal
+        String[] strings = new String[20];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = randomString();
+        }
+        for (int i = 0; i < 5000; i++) {
+            elements.add(new String[] { strings[random.nextInt(strings.length)], Integer.toString(i) });
+        }
+        List<String[]> expected = new ArrayList<String[]>(elements);
+        // Collections.sort is stable
+        Collections.sort(expected, (e1, e2) -> legacyComparator.compare(e1[0], e2[0]));
+        AlphaNumComparator.sort(elements, element -> element[0]);
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i)[1], elements.get(i)[1]);
+        }
+    }
+
+}